@@ -0,0 +1,113 @@
+package section3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A frame of the collision detection between karts : moving them, then finding the pairs whose bounding squares
+ * overlap, with the broad phase (see {@link BroadPhase}) and by testing every pair, for growing numbers of karts.
+ * <p>
+ * The karts are spread at the density of a full room on the track, about 8 karts on 750 x 500, over an area growing
+ * with their number, and drive in random directions, coming back on the other side of the area when they leave it.
+ * Both ways find the same pairs ; testing every pair takes time growing with the square of the number of karts,
+ * the broad phase about linearly. See readme.md for how to run it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadPhaseBenchmark {
+
+    /**
+     * Track area per kart
+     */
+    private static final int AREA_PER_KART = 750 * 500 / 8;
+
+    private static final double DT = 0.3;
+
+    @Param({"100", "1000", "5000"})
+    public int karts;
+
+    private Kart[] moving;
+
+    /**
+     * Side of the square the karts drive in
+     */
+    private int side;
+
+    private BroadPhase phase;
+
+    private int pairs;
+
+    private final BroadPhase.PairConsumer counter = (a, b) -> pairs++;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(karts);
+        side = (int) Math.sqrt((double) karts * AREA_PER_KART);
+        moving = new Kart[karts];
+        for (int i = 0; i < karts; i++) {
+            moving[i] = new Kart(new Point(random.nextInt(side), random.nextInt(side)), new Dimension(35, 25),
+                    random.nextInt(16));
+            for (int a = random.nextInt(4); a > 0; a--) {
+                moving[i].accelerate();
+            }
+        }
+        phase = new BroadPhase(karts);
+    }
+
+    @Benchmark
+    public int broadPhase() {
+        move();
+        for (int i = 0; i < moving.length; i++) {
+            phase.update(i, moving[i]);
+        }
+        pairs = 0;
+        phase.forEachPair(counter);
+        return pairs;
+    }
+
+    /**
+     * As GamePanel found the karts to test before the broad phase
+     */
+    @Benchmark
+    public int everyPair() {
+        move();
+        int found = 0;
+        for (int i = 0; i < moving.length; i++) {
+            for (int j = i + 1; j < moving.length; j++) {
+                if (overlap(moving[i], moving[j]))
+                    found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Moves the karts a frame, keeping them in the square so that their density doesn't change
+     */
+    private void move() {
+        for (Kart kart : moving) {
+            kart.update(DT);
+            int x = Math.floorMod(kart.getCenterX(), side);
+            int y = Math.floorMod(kart.getCenterY(), side);
+            if (x != kart.getCenterX() || y != kart.getCenterY()) {
+                KartState state = kart.getState();
+                kart.setState(new KartState(x, y, state.sizeX, state.sizeY, state.speed, state.direction, state.stuck));
+            }
+        }
+    }
+
+    /**
+     * @return whether the bounding squares of two karts overlap, as the broad phase tests them
+     */
+    private static boolean overlap(Kart a, Kart b) {
+        int reach = a.getRadius() + b.getRadius();
+        return Math.abs(a.getCenterX() - b.getCenterX()) <= reach && Math.abs(a.getCenterY() - b.getCenterY()) <= reach;
+    }
+}
@@ -0,0 +1,72 @@
+package section3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding, decoding and moving a kart : what every client and the server do for every kart, every frame.
+ * See readme.md for how to run it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KartBenchmark {
+
+    private Kart kart;
+
+    private String text;
+
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        kart = new Kart(new Point(425, 525), new Dimension(35, 25), 3);
+        kart.accelerate();
+        kart.accelerate();
+        text = kart.encode();
+        buffer = ByteBuffer.allocate(KartState.BINARY_SIZE);
+        // decodeBinary decodes the kart's actual state, not zeros
+        kart.encode(buffer);
+        buffer.flip();
+    }
+
+    @Benchmark
+    public String encodeText() {
+        return kart.encode();
+    }
+
+    @Benchmark
+    public Kart decodeText() {
+        kart.decode(text);
+        return kart;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        buffer.clear();
+        kart.encode(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Kart decodeBinary() {
+        buffer.rewind();
+        kart.decode(buffer);
+        return kart;
+    }
+
+    @Benchmark
+    public Kart update() {
+        kart.update(0.3);
+        // keep the kart where it started, so that its coordinates don't overflow
+        if (kart.getCenterX() > 10_000)
+            kart.decode(text);
+        return kart;
+    }
+}
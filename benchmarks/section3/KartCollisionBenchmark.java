@@ -0,0 +1,57 @@
+package section3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The exact collision tests between karts and against the track's walls, as done with the karts' shapes and with
+ * their precomputed boxes (see {@link KartBox}). The karts overlap, the walls are near but not hit.
+ * See readme.md for how to run it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KartCollisionBenchmark {
+
+    private final Track track = new Track();
+
+    private Kart kart, other;
+
+    @Setup
+    public void setUp() {
+        kart = new Kart(new Point(425, 525), new Dimension(35, 25), 3);
+        other = new Kart(new Point(445, 535), new Dimension(35, 25), 14);
+    }
+
+    /**
+     * As GamePanel tested the karts before the boxes
+     */
+    @Benchmark
+    public boolean kartsWithShapes() {
+        return kart.getShape().intersects(other.getShape().getBounds());
+    }
+
+    @Benchmark
+    public boolean kartsWithBoxes() {
+        return kart.intersects(other);
+    }
+
+    /**
+     * As Track tested the walls before the boxes
+     */
+    @Benchmark
+    public boolean wallsWithShapes() {
+        Shape shape = kart.getShape();
+        return shape.intersects(track.innerBounds) || !track.outerBounds.contains(shape.getBounds());
+    }
+
+    @Benchmark
+    public boolean wallsWithBoxes() {
+        return kart.intersects(track.innerBounds) || !kart.isInside(track.outerBounds);
+    }
+}
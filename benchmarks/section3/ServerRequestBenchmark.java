@@ -0,0 +1,183 @@
+package section3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The server handling a P1 request and its binary STATE equivalent, from the request to the reply written out,
+ * with a full room of 8 clients whose replies go to memory instead of sockets. The server runs as usual, its rooms
+ * ticking 30 times a second, so the world is encoded once per tick as it would be.
+ * With recording, the rooms' races are also recorded, see {@link ReplayRecorder}, which must not slow the requests.
+ * See readme.md for how to run it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerRequestBenchmark {
+
+    /**
+     * A client whose replies are copied to memory
+     */
+    private static final class MemoryClient implements ClientConnection {
+
+        private final Room.Seat seat;
+
+        /**
+         * Receives the replies, cleared before each request
+         */
+        private final ByteBuffer received = ByteBuffer.allocate(64 * 1024);
+
+        private boolean binary;
+
+        MemoryClient(Room.Seat seat) {
+            this.seat = seat;
+        }
+
+        @Override
+        public int getClientId() {
+            return seat.id;
+        }
+
+        @Override
+        public Room getRoom() {
+            return seat.room;
+        }
+
+        @Override
+        public void send(String message) {
+            for (int i = 0; i < message.length(); i++) {
+                received.put((byte) message.charAt(i));
+            }
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            received.put(frame.duplicate());
+        }
+
+        @Override
+        public void send(ByteBuffer[] parts) {
+            for (ByteBuffer part : parts) {
+                received.put(part.duplicate());
+            }
+        }
+
+        @Override
+        public void sendLeave(int clientId) {
+            if (binary)
+                send(WireCodec.leaveFrame(clientId));
+            else
+                send("P0#" + clientId);
+        }
+
+        @Override
+        public void startBinary() {
+            binary = true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean recording;
+
+    private ServerLog log;
+
+    /**
+     * Where the races are recorded, null if they are not
+     */
+    private Path replayDirectory;
+
+    private ServerEngine server;
+
+    private final MemoryClient[] clients = new MemoryClient[ServerEngine.DEFAULT_ROOM_SIZE];
+
+    private String request;
+
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws Exception {
+        Consumer<String> discard = line -> {
+        };
+        log = new ServerLog(null, discard);
+        log.setLevel(ServerLog.Level.WARN);
+        log.start();
+        server = new ServerEngine(log, ServerEngine.DEFAULT_MAX_CLIENTS, ServerEngine.DEFAULT_ROOM_SIZE,
+                new ServerEngine.Listener() {
+                    @Override
+                    public void error(String message) {
+                        System.err.println(message);
+                    }
+
+                    @Override
+                    public void stopped() {
+                    }
+                });
+        if (recording) {
+            replayDirectory = Files.createTempDirectory("replays");
+            server.setReplayDirectory(replayDirectory);
+        }
+        server.start(0, ServerEngine.Mode.NIO, 30);
+        // a full room, every kart on the track near the others
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new MemoryClient(server.joinRoom());
+            server.clientConnected(clients[i]);
+            server.handleClientRequest(clients[i], "P1#" + new KartState(200 + 50 * i, 525, 35, 25, 20, 0, false).encode());
+        }
+        KartState state = new KartState(425, 525, 35, 25, 20, 3, false);
+        request = "P1#" + state.encode();
+        frame = ByteBuffer.allocate(1 + KartState.BINARY_SIZE);
+        frame.put(WireCodec.STATE);
+        state.encode(frame);
+        frame.flip();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        log.stop();
+        if (replayDirectory != null) {
+            try (Stream<Path> journals = Files.list(replayDirectory)) {
+                for (Path journal : (Iterable<Path>) journals::iterator) {
+                    Files.delete(journal);
+                }
+            }
+            Files.delete(replayDirectory);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer textRequest() {
+        MemoryClient client = clients[0];
+        client.received.clear();
+        server.handleClientRequest(client, request);
+        return client.received;
+    }
+
+    @Benchmark
+    public ByteBuffer binaryRequest() {
+        MemoryClient client = clients[1];
+        client.received.clear();
+        frame.rewind();
+        server.handleClientFrame(client, frame);
+        return client.received;
+    }
+}
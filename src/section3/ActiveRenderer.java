@@ -0,0 +1,168 @@
+package section3;
+
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws the game on a {@link Canvas} from a thread of its own, at a fixed frame rate, instead of waiting for Swing to
+ * repaint the panel.
+ * <p>
+ * Each frame is drawn into the back buffer of a {@link BufferStrategy} and shown in one go. What doesn't move, i.e.
+ * the track, is drawn once into a {@link VolatileImage}, which stays in video memory where the platform allows it,
+ * and each frame only copies it and draws the karts over it. The track is drawn again only when the image is lost,
+ * e.g. when the display changes.
+ * <p>
+ * The frames are paced with a frame limiter : after each frame the thread sleeps until the next one is due.
+ * Java2D offers no vertical sync in a window, so the "vsync" option paces the frames to the display's refresh rate.
+ */
+final class ActiveRenderer implements Runnable {
+
+    /**
+     * What the renderer draws
+     */
+    interface Scene {
+
+        /**
+         * Draws what doesn't change from one frame to the next. Only called when the cached image needs drawing again.
+         */
+        void drawBackground(Graphics g);
+
+        /**
+         * Draws the moving parts of a frame over the background, on the renderer's thread
+         *
+         * @return false to skip the frame, e.g. while the game is busy, in which case the previous frame stays shown
+         */
+        boolean drawForeground(Graphics g);
+    }
+
+    /**
+     * Frame rate used for "vsync" when the display's refresh rate isn't known
+     */
+    static final int DEFAULT_REFRESH_RATE = 60;
+
+    /**
+     * The surface drawn on, to be added to the window before start()
+     */
+    final Canvas canvas = new Canvas();
+
+    private final Scene scene;
+
+    /**
+     * Time between two frames, in nanoseconds
+     */
+    private final long framePeriod;
+
+    /**
+     * The background, drawn once and copied into each frame
+     */
+    private VolatileImage background;
+
+    private volatile boolean running;
+
+    /**
+     * @param scene           what to draw
+     * @param framesPerSecond frames drawn per second at most
+     */
+    ActiveRenderer(Scene scene, int framesPerSecond) {
+        this.scene = scene;
+        framePeriod = 1_000_000_000L / framesPerSecond;
+        canvas.setIgnoreRepaint(true); // all the drawing is done here
+    }
+
+    /**
+     * @return refresh rate of the default display, DEFAULT_REFRESH_RATE if it isn't known
+     */
+    static int refreshRate() {
+        if (GraphicsEnvironment.isHeadless())
+            return DEFAULT_REFRESH_RATE;
+        int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+        return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : rate;
+    }
+
+    /**
+     * Starts drawing frames. The canvas must be displayable, i.e. in a window that is shown.
+     */
+    void start() {
+        canvas.createBufferStrategy(2);
+        running = true;
+        Thread thread = new Thread(this, "renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops drawing frames, after the current one
+     */
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        BufferStrategy strategy = canvas.getBufferStrategy();
+        long next = System.nanoTime();
+        while (running) {
+            if (canvas.getWidth() > 0 && canvas.getHeight() > 0)
+                render(strategy);
+            next += framePeriod;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (wait < -framePeriod)
+                next = System.nanoTime(); // too late for more than a frame, don't rush the next ones to catch up
+        }
+    }
+
+    /**
+     * Draws a frame and shows it, again as long as the buffers are lost meanwhile
+     */
+    private void render(BufferStrategy strategy) {
+        boolean drawn;
+        do {
+            do {
+                Graphics g = strategy.getDrawGraphics();
+                try {
+                    drawBackground(g);
+                    drawn = scene.drawForeground(g);
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            if (!drawn)
+                return;
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync(); // some platforms buffer the drawing commands
+    }
+
+    /**
+     * Copies the background into the frame, drawing it again first if the cached image was lost
+     */
+    private void drawBackground(Graphics g) {
+        GraphicsConfiguration configuration = canvas.getGraphicsConfiguration();
+        int width = canvas.getWidth(), height = canvas.getHeight();
+        do {
+            int status = background == null ? VolatileImage.IMAGE_INCOMPATIBLE : background.validate(configuration);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE || background.getWidth() != width || background.getHeight() != height) {
+                if (background != null)
+                    background.flush();
+                background = configuration.createCompatibleVolatileImage(width, height);
+                status = VolatileImage.IMAGE_RESTORED;
+            }
+            if (status == VolatileImage.IMAGE_RESTORED) {
+                Graphics2D bg = background.createGraphics();
+                try {
+                    bg.setColor(canvas.getBackground());
+                    bg.fillRect(0, 0, width, height);
+                    scene.drawBackground(bg);
+                } finally {
+                    bg.dispose();
+                }
+            }
+            g.drawImage(background, 0, 0, null);
+        } while (background.contentsLost());
+    }
+}
@@ -0,0 +1,149 @@
+package section3;
+
+/**
+ * Broad phase of the collision detection between karts : sweep and prune along the x axis.
+ * <p>
+ * Each kart is bounded by the square around the circle its box turns in, so its bounds don't change as it steers.
+ * The karts are kept sorted by the left side of their square. Karts only move a little from one frame to the next,
+ * so sorting them again with an insertion sort takes about linear time. Sweeping along the sorted karts then only
+ * looks at karts whose squares overlap along x, and only those overlapping along y as well are handed to the exact
+ * test. With karts spread over the track, that is a few candidates per kart instead of every other kart.
+ * Nothing is allocated after construction.
+ */
+final class BroadPhase {
+
+    /**
+     * Receives the candidate pairs of {@link #forEachPair(PairConsumer)}
+     */
+    interface PairConsumer {
+        void accept(int a, int b);
+    }
+
+    //Bounding square of each kart
+    private final int[] minX, maxX, minY, maxY;
+
+    private final boolean[] active;
+
+    /**
+     * The active karts, sorted by minX once sort() has run
+     */
+    private final int[] order;
+
+    private int count;
+
+    /**
+     * Widest bounding square ever seen, bounds how far back overlapping squares may start
+     */
+    private int maxWidth;
+
+    /**
+     * @param capacity kart indices are below this
+     */
+    BroadPhase(int capacity) {
+        minX = new int[capacity];
+        maxX = new int[capacity];
+        minY = new int[capacity];
+        maxY = new int[capacity];
+        active = new boolean[capacity];
+        order = new int[capacity];
+    }
+
+    /**
+     * Sets where a kart is, adding it if it isn't there yet
+     *
+     * @param index   the kart's index
+     * @param centerX center of the kart
+     * @param centerY center of the kart
+     * @param radius  no part of the kart is further than this from its center
+     */
+    void update(int index, int centerX, int centerY, int radius) {
+        minX[index] = centerX - radius;
+        maxX[index] = centerX + radius;
+        minY[index] = centerY - radius;
+        maxY[index] = centerY + radius;
+        maxWidth = Math.max(maxWidth, 2 * radius);
+        if (!active[index]) {
+            active[index] = true;
+            order[count++] = index;
+        }
+    }
+
+    /**
+     * Sets where a kart is, adding it if it isn't there yet
+     */
+    void update(int index, Kart kart) {
+        update(index, kart.getCenterX(), kart.getCenterY(), kart.getRadius());
+    }
+
+    /**
+     * Takes a kart out
+     */
+    void remove(int index) {
+        if (!active[index])
+            return;
+        active[index] = false;
+        int i = 0;
+        while (order[i] != index)
+            i++;
+        System.arraycopy(order, i + 1, order, i, count - i - 1);
+        count--;
+    }
+
+    /**
+     * Hands every pair of karts whose bounding squares overlap to the consumer, each pair once
+     */
+    void forEachPair(PairConsumer consumer) {
+        sort();
+        for (int i = 0; i < count; i++) {
+            int a = order[i];
+            for (int j = i + 1; j < count && minX[order[j]] <= maxX[a]; j++) {
+                int b = order[j];
+                if (minY[b] <= maxY[a] && minY[a] <= maxY[b])
+                    consumer.accept(a, b);
+            }
+        }
+    }
+
+    /**
+     * Finds the karts whose bounding squares overlap a kart's
+     *
+     * @param index      the kart's index
+     * @param candidates receives the indices of the other karts, at least as long as the capacity
+     * @return number of candidates found
+     */
+    int overlaps(int index, int[] candidates) {
+        sort();
+        int position = 0;
+        while (order[position] != index)
+            position++;
+        int found = 0;
+        // squares starting earlier can't start further back than the widest one
+        for (int j = position - 1; j >= 0 && minX[order[j]] >= minX[index] - maxWidth; j--) {
+            int other = order[j];
+            if (maxX[other] >= minX[index] && minY[other] <= maxY[index] && minY[index] <= maxY[other])
+                candidates[found++] = other;
+        }
+        for (int j = position + 1; j < count && minX[order[j]] <= maxX[index]; j++) {
+            int other = order[j];
+            if (minY[other] <= maxY[index] && minY[index] <= maxY[other])
+                candidates[found++] = other;
+        }
+        return found;
+    }
+
+    /**
+     * Sorts the karts by minX again. Nearly sorted already, since the karts moved a little since the last sort.
+     */
+    private void sort() {
+        for (int i = 1; i < count; i++) {
+            int index = order[i];
+            int key = minX[index];
+            int j = i - 1;
+            while (j >= 0 && minX[order[j]] > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package section3;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers handed out and given back, so that buffers rebuilt every tick are not allocated over and over.
+ * Direct buffers are written to sockets without being copied first, but they are slow to allocate and to collect.
+ */
+final class BufferPool {
+
+    /**
+     * Size of the smallest buffer handed out. Larger ones are rounded up to a power of two.
+     */
+    private static final int MIN_SIZE = 4 * 1024;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of buffers in the pool
+     */
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Buffers given back beyond this are left to the garbage collector
+     */
+    private final int maxPooled;
+
+    /**
+     * @param maxPooled maximum number of buffers kept for later
+     */
+    BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @param size number of bytes needed
+     * @return a cleared direct buffer of at least that size, to be given back with {@link #release(ByteBuffer)}
+     */
+    ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            pooled.decrementAndGet();
+            if (buffer.capacity() >= size) {
+                buffer.clear();
+                return buffer;
+            }
+            // too small for the world as it is now, a larger one replaces it
+        }
+        return ByteBuffer.allocateDirect(Math.max(MIN_SIZE, Integer.highestOneBit(size - 1) << 1));
+    }
+
+    /**
+     * Gives a buffer back. It must no longer be used, not even through views of it.
+     */
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled)
+            buffers.add(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+}
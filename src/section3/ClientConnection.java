@@ -0,0 +1,71 @@
+package section3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A client as seen by the server, independent of how its socket is serviced.
+ * Both the thread per client mode and the NIO mode hand their requests to the same protocol handler through this.
+ */
+interface ClientConnection {
+
+    /**
+     * @return Id of this client, its index in its room's {@link KartRegistry}
+     */
+    int getClientId();
+
+    /**
+     * @return the room the client is seated in, see {@link Room}
+     */
+    Room getRoom();
+
+    /**
+     * Sends one line to the client.
+     * Safe to call from any thread.
+     *
+     * @param message the line to be sent, without the line terminator
+     */
+    void send(String message);
+
+    /**
+     * @return whether the client switched to the binary format, see {@link WireCodec}
+     */
+    boolean isBinary();
+
+    /**
+     * Sends bytes already encoded to the client : a frame of the binary format, or lines of the text protocol.
+     * Safe to call from any thread. The frame is not consumed, so the same frame can be sent to many clients.
+     * It must not be modified afterwards, since it may still be queued.
+     *
+     * @param frame the frame, from its position to its limit
+     */
+    void send(ByteBuffer frame);
+
+    /**
+     * Sends bytes already encoded, given in parts, in one write where possible (see {@link EncodedWorld}).
+     * Safe to call from any thread. The parts are not consumed and are only read during the call,
+     * so they can be views of a buffer that is reused afterwards.
+     *
+     * @param parts the parts, each from its position to its limit, in order
+     */
+    void send(ByteBuffer[] parts);
+
+    /**
+     * Tells the client that another one left : P0#&lt;id&gt;, or a LEAVE frame once it switched to the binary format.
+     * Safe to call from any thread. The format is picked under the same lock as startBinary switches it, so that the
+     * message never reaches the client in the format it just left.
+     *
+     * @param clientId id of the client that left
+     */
+    void sendLeave(int clientId);
+
+    /**
+     * Acknowledges the client's negotiation line and switches both directions to the binary format.
+     * Called on the thread reading from the client.
+     */
+    void startBinary();
+
+    /**
+     * Closes the connection to the client.
+     */
+    void close();
+}
@@ -0,0 +1,77 @@
+package section3;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Times what a {@link GamePanel} does, from the game loop, the rendering and the network threads,
+ * for JMX and the {@link MetricsEndpoint}. Recording never locks, see {@link LatencyHistogram}.
+ */
+final class ClientMetrics implements ClientMetricsMXBean {
+
+    private final LatencyHistogram frameTime = new LatencyHistogram();
+    private final LatencyHistogram renderTime = new LatencyHistogram();
+    private final LatencyHistogram networkWait = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+
+    /**
+     * Registers the metrics with the platform's MBean server. A failure is only printed, the game goes on without them.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("section3:type=Client"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void frame(long nanos) {
+        frameTime.record(nanos);
+    }
+
+    void render(long nanos) {
+        renderTime.record(nanos);
+    }
+
+    void networkWait(long nanos) {
+        networkWait.record(nanos);
+    }
+
+    void decoded(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    @Override
+    public Map<String, Long> getFrameTimeMicros() {
+        return MetricsEndpoint.percentiles(frameTime);
+    }
+
+    @Override
+    public Map<String, Long> getRenderTimeMicros() {
+        return MetricsEndpoint.percentiles(renderTime);
+    }
+
+    @Override
+    public Map<String, Long> getNetworkWaitMicros() {
+        return MetricsEndpoint.percentiles(networkWait);
+    }
+
+    @Override
+    public Map<String, Long> getDecodeTimeMicros() {
+        return MetricsEndpoint.percentiles(decodeTime);
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format, see {@link MetricsEndpoint}
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        MetricsEndpoint.summary(text, "kart_client_frame_time_micros", frameTime);
+        MetricsEndpoint.summary(text, "kart_client_render_time_micros", renderTime);
+        MetricsEndpoint.summary(text, "kart_client_network_wait_micros", networkWait);
+        MetricsEndpoint.summary(text, "kart_client_decode_time_micros", decodeTime);
+        return text.toString();
+    }
+}
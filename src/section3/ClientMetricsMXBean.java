@@ -0,0 +1,34 @@
+package section3;
+
+import java.util.Map;
+
+/**
+ * Figures of a running {@link GamePanel}, as seen through JMX under section3:type=Client, e.g. in jconsole.
+ * The same figures are served as plain text by the {@link MetricsEndpoint} when the client is given a metrics port.
+ * <p>
+ * Latencies are in microseconds, as percentiles keyed p50, p90, p99, p99.9 and max, along with the count of
+ * latencies recorded, since the client started.
+ */
+public interface ClientMetricsMXBean {
+
+    /**
+     * @return time taken by a step of the game loop, sending to the server included
+     */
+    Map<String, Long> getFrameTimeMicros();
+
+    /**
+     * @return time taken to draw the karts of a frame
+     */
+    Map<String, Long> getRenderTimeMicros();
+
+    /**
+     * @return time from a state being sent to its reply arriving, or in tick mode from an input being sent to
+     * a snapshot acknowledging it
+     */
+    Map<String, Long> getNetworkWaitMicros();
+
+    /**
+     * @return time taken to decode and apply a line or frame from the server
+     */
+    Map<String, Long> getDecodeTimeMicros();
+}
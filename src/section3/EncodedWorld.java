@@ -0,0 +1,225 @@
+package section3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The karts of the world, encoded once per tick for the replies to the P1 requests and their binary STATE frames.
+ * <p>
+ * Every kart is encoded both as a line of the text reply and as an entry of the binary reply, back to back in one
+ * direct buffer from a {@link BufferPool}. A reply is then a small header followed by read-only views of that buffer,
+ * one per run of consecutive karts the client is sent (see {@link Room#interest(EncodedWorld, int, int[])}), and is
+ * written in one gathered write. The karts are no longer formatted again for each request, so the server's cost per
+ * tick grows linearly with the number of clients.
+ * <p>
+ * The buffer goes back to the pool once the world is superseded and no reply is being written from it,
+ * which is tracked with a reference count.
+ */
+final class EncodedWorld {
+
+    /**
+     * Tick the world was encoded at
+     */
+    final long tick;
+
+    /**
+     * Ids of the karts, in increasing order
+     */
+    private final int[] ids;
+
+    /**
+     * State of each kart
+     */
+    private final KartState[] states;
+
+    /**
+     * Start of each kart's line, and the end of the last one
+     */
+    private final int[] textOffsets;
+
+    /**
+     * Start of each kart's binary entry, and the end of the last one
+     */
+    private final int[] binaryOffsets;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Read-only view of the whole buffer, which the replies are sliced from
+     */
+    private final ByteBuffer view;
+
+    private final BufferPool pool;
+
+    /**
+     * One for the server holding this as its current world, plus one per reply being written.
+     * Once it drops to 0 the buffer is back in the pool and this can't be retained anymore.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private EncodedWorld(long tick, int[] ids, KartState[] states, int[] textOffsets, int[] binaryOffsets,
+                         ByteBuffer buffer, BufferPool pool) {
+        this.tick = tick;
+        this.ids = ids;
+        this.states = states;
+        this.textOffsets = textOffsets;
+        this.binaryOffsets = binaryOffsets;
+        this.buffer = buffer;
+        this.pool = pool;
+        view = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes the karts of the registry. The result holds one reference, for the caller.
+     *
+     * @param tick     the current tick
+     * @param registry the server's karts
+     * @param pool     where the buffer is taken from and given back to
+     * @return the encoded world
+     */
+    static EncodedWorld encode(long tick, KartRegistry registry, BufferPool pool) {
+        // each slot is read once, so that both encodings show the same karts
+        int limit = registry.limit();
+        int[] ids = new int[limit];
+        KartState[] states = new KartState[limit];
+        int count = 0;
+        for (int id = 0; id < limit; id++) {
+            KartState state = registry.kart(id);
+            if (state != null) {
+                ids[count] = id;
+                states[count++] = state;
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        states = Arrays.copyOf(states, count);
+
+        StringBuilder text = new StringBuilder(count * 32);
+        int[] textOffsets = new int[count + 1];
+        int binarySize = 0;
+        for (int i = 0; i < count; i++) {
+            textOffsets[i] = text.length();
+            text.append(ids[i]).append('?').append(states[i].encode()).append('\n');
+            binarySize += WireCodec.varIntSize(ids[i]) + KartState.BINARY_SIZE;
+        }
+        textOffsets[count] = text.length();
+
+        ByteBuffer buffer = pool.acquire(text.length() + binarySize);
+        buffer.put(text.toString().getBytes(StandardCharsets.US_ASCII));
+        int[] binaryOffsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            binaryOffsets[i] = buffer.position();
+            WireCodec.writeVarInt(buffer, ids[i]);
+            states[i].encode(buffer);
+        }
+        binaryOffsets[count] = buffer.position();
+        return new EncodedWorld(tick, ids, states, textOffsets, binaryOffsets, buffer, pool);
+    }
+
+    /**
+     * Takes a reference for writing a reply
+     *
+     * @return false if the world has already been released for good, in which case it must not be used
+     */
+    boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0)
+                return false;
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Gives a reference back. The last one gives the buffer back to the pool.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0)
+            pool.release(buffer);
+    }
+
+    /**
+     * @return number of karts
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return index of the kart with the given id, negative if the world doesn't have it
+     */
+    int indexOf(int id) {
+        return Arrays.binarySearch(ids, id);
+    }
+
+    /**
+     * @return state of the kart at the given index
+     */
+    KartState state(int index) {
+        return states[index];
+    }
+
+    /**
+     * The reply to a P1 request : the number of karts, then a line per kart.
+     * The views are only valid while a reference is held.
+     *
+     * @param indices indices of the karts in the reply, in increasing order
+     * @param count   number of karts in the reply
+     * @return the reply, in parts to be written in order
+     */
+    ByteBuffer[] textReply(int[] indices, int count) {
+        ByteBuffer header = ByteBuffer.wrap((count + "\n").getBytes(StandardCharsets.US_ASCII));
+        return reply(header, textOffsets, indices, count);
+    }
+
+    /**
+     * The reply to a binary STATE request, as a frame, see {@link WireCodec}.
+     * The views are only valid while a reference is held.
+     *
+     * @param indices indices of the karts in the reply, in increasing order
+     * @param count   number of karts in the reply
+     * @return the reply, in parts to be written in order
+     */
+    ByteBuffer[] binaryReply(int[] indices, int count) {
+        int entries = 0;
+        for (int i = 0; i < count; i++) {
+            entries += binaryOffsets[indices[i] + 1] - binaryOffsets[indices[i]];
+        }
+        ByteBuffer header = ByteBuffer.allocate(2 * WireCodec.MAX_VARINT_SIZE + 1);
+        WireCodec.writeVarInt(header, 1 + WireCodec.varIntSize(count) + entries);
+        header.put(WireCodec.STATE);
+        WireCodec.writeVarInt(header, count);
+        header.flip();
+        return reply(header, binaryOffsets, indices, count);
+    }
+
+    /**
+     * @return the header followed by a view of each run of consecutive karts
+     */
+    private ByteBuffer[] reply(ByteBuffer header, int[] offsets, int[] indices, int count) {
+        // the runs are counted first, so that the parts are gathered straight in an array of the right size
+        int runs = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || indices[i] != indices[i - 1] + 1)
+                runs++;
+        }
+        ByteBuffer[] parts = new ByteBuffer[1 + runs];
+        parts[0] = header;
+        int part = 1;
+        int i = 0;
+        while (i < count) {
+            int first = indices[i];
+            while (i + 1 < count && indices[i + 1] == indices[i] + 1)
+                i++;
+            parts[part++] = slice(offsets[first], offsets[indices[i] + 1]);
+            i++;
+        }
+        return parts;
+    }
+
+    private ByteBuffer slice(int from, int to) {
+        return view.slice(from, to - from);
+    }
+}
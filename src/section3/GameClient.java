@@ -2,6 +2,7 @@ package section3;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 
 /**
  * Main class for Game Client. Allows the player to connect to a server and play a racing game.
@@ -11,19 +12,77 @@ public class GameClient extends JFrame {
 
     private final JButton connectButton, disconnectButton;
 
+    /**
+     * Options : --active-rendering to draw the game from a thread of its own (see {@link ActiveRenderer}),
+     * --fps &lt;frames per second&gt;|vsync to set its frame rate, 60 by default. vsync follows the display's refresh rate.
+     * --metrics-port &lt;port&gt; to serve the game's metrics on http://127.0.0.1:&lt;port&gt;/metrics, see
+     * {@link MetricsEndpoint}. They are always available through JMX, see {@link ClientMetricsMXBean}.
+     *
+     * @param args the options
+     */
     public static void main(String[] args) {
-        new GameClient();
+        GamePanel.preloadAssets();
+        boolean activeRendering = false;
+        int fps = 60;
+        int metricsPort = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--active-rendering" -> activeRendering = true;
+                    case "--fps" -> {
+                        String value = args[++i];
+                        fps = value.equals("vsync") ? ActiveRenderer.refreshRate() : Integer.parseInt(value);
+                    }
+                    case "--metrics-port" -> metricsPort = Integer.parseInt(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + "\nOptions : [--active-rendering] [--fps <frames/s>|vsync]"
+                    + " [--metrics-port <port>]");
+            System.exit(1);
+        }
+        GameClient client = new GameClient(activeRendering ? fps : 0);
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metricsPort, client.game.metrics::text).start();
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint not started : " + e.getMessage());
+            }
+        }
     }
 
     private final JTextField serverField;
     private final JTextField portField;
 
+    /**
+     * To let the server simulate the karts, see {@link GamePanel#setServerTicks(boolean)}
+     */
+    private final JCheckBox serverTicksCheckBox;
+
+    /**
+     * To use the binary format, see {@link GamePanel#setBinary(boolean)}
+     */
+    private final JCheckBox binaryCheckBox;
+
+    /**
+     * To send state traffic in datagrams, see {@link GamePanel#setUdp(boolean)}
+     */
+    private final JCheckBox udpCheckBox;
+
     private GamePanel game;
 
     final int DEFAULT_PORT = 12345;
     final String DEFAULT_SERVER = "localhost";
 
     public GameClient() {
+        this(0);
+    }
+
+    /**
+     * @param activeFps frame rate of the active rendering, 0 to let Swing repaint the game instead
+     */
+    public GameClient(int activeFps) {
         setTitle("Kart Racing: Client");
         game = new GamePanel();
         //setContentPane(game);
@@ -44,6 +103,15 @@ public class GameClient extends JFrame {
         disconnectButton.addActionListener(e -> disconnect());
         disconnectButton.setEnabled(false);
 
+        serverTicksCheckBox = new JCheckBox("Server Ticks");
+        serverTicksCheckBox.addActionListener(e -> game.setServerTicks(serverTicksCheckBox.isSelected()));
+
+        binaryCheckBox = new JCheckBox("Binary");
+        binaryCheckBox.addActionListener(e -> game.setBinary(binaryCheckBox.isSelected()));
+
+        udpCheckBox = new JCheckBox("UDP");
+        udpCheckBox.addActionListener(e -> game.setUdp(udpCheckBox.isSelected()));
+
         JCheckBox debugCheckBox = new JCheckBox("Debug Mode");
         debugCheckBox.addActionListener(e -> game.setDebugMode(debugCheckBox.isSelected()));
 
@@ -54,6 +122,9 @@ public class GameClient extends JFrame {
         topPanel.add(portField);
         topPanel.add(connectButton);
         topPanel.add(disconnectButton);
+        topPanel.add(serverTicksCheckBox);
+        topPanel.add(binaryCheckBox);
+        topPanel.add(udpCheckBox);
         topPanel.add(debugCheckBox);
         topPanel.setBorder(BorderFactory.createLineBorder(Color.BLUE));
         add(topPanel, BorderLayout.NORTH);
@@ -61,6 +132,8 @@ public class GameClient extends JFrame {
         setSize(new Dimension(850, 700));
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setVisible(true);
+        if (activeFps > 0)
+            game.startActiveRendering(activeFps);
     }
 
     /**
@@ -70,6 +143,9 @@ public class GameClient extends JFrame {
         game.disconnect();
         disconnectButton.setEnabled(false);
         connectButton.setEnabled(true);
+        serverTicksCheckBox.setEnabled(true);
+        binaryCheckBox.setEnabled(true);
+        udpCheckBox.setEnabled(true);
     }
 
     /**
@@ -88,6 +164,9 @@ public class GameClient extends JFrame {
         if (game.connect(server, port)) {
             connectButton.setEnabled(false);
             disconnectButton.setEnabled(true);
+            serverTicksCheckBox.setEnabled(false);
+            binaryCheckBox.setEnabled(false);
+            udpCheckBox.setEnabled(false);
         } else {
             JOptionPane.showMessageDialog(this, "Failed to connect", "Error", JOptionPane.ERROR_MESSAGE);
         }
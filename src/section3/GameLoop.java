@@ -0,0 +1,108 @@
+package section3;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the simulation of the game in fixed steps, on a thread of its own, whatever the frame rate.
+ * <p>
+ * The time elapsed is added to an accumulator, and a step is taken for each step period it holds. Every step moves
+ * the karts by the same amount, so they move at the same speed on fast and slow machines : a late thread, e.g.
+ * after a garbage collection, takes the steps it missed back to back. It never takes more than MAX_CATCH_UP of them
+ * at once though, the game slows down instead when the machine can't keep up at all.
+ * <p>
+ * Rendering happens at its own rate, between two steps. {@link #alpha()} tells how far the current time is between
+ * the last step and the next one, so that the karts can be drawn between their last two states.
+ */
+final class GameLoop implements Runnable {
+
+    /**
+     * Most steps taken back to back to catch up
+     */
+    static final int MAX_CATCH_UP = 5;
+
+    /**
+     * One step of the simulation
+     */
+    interface Step {
+        void step();
+    }
+
+    private final Step step;
+
+    /**
+     * Held during each step
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Time between two steps, in nanoseconds
+     */
+    private final long stepPeriod;
+
+    /**
+     * When the last step was taken, in System.nanoTime()
+     */
+    private volatile long lastStepAt = System.nanoTime();
+
+    private volatile boolean running;
+
+    /**
+     * @param step           the step of the simulation
+     * @param lock           held during each step, e.g. so that a frame is never drawn in the middle of a step
+     * @param stepsPerSecond number of steps per second
+     */
+    GameLoop(Step step, ReentrantLock lock, int stepsPerSecond) {
+        this.step = step;
+        this.lock = lock;
+        stepPeriod = 1_000_000_000L / stepsPerSecond;
+    }
+
+    /**
+     * Starts taking steps, the first one a step period from now
+     */
+    void start() {
+        running = true;
+        Thread thread = new Thread(this, "game-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops taking steps. The step being taken, if any, is completed.
+     */
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * @return how far the current time is between the last step and the next one, from 0 to 1
+     */
+    double alpha() {
+        return Math.min(1, (double) (System.nanoTime() - lastStepAt) / stepPeriod);
+    }
+
+    @Override
+    public void run() {
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        while (running) {
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+            if (accumulator > MAX_CATCH_UP * stepPeriod)
+                accumulator = MAX_CATCH_UP * stepPeriod; // the time beyond is lost
+            while (accumulator >= stepPeriod && running) {
+                lock.lock();
+                try {
+                    step.step();
+                } finally {
+                    lock.unlock();
+                }
+                accumulator -= stepPeriod;
+                lastStepAt = System.nanoTime();
+            }
+            LockSupport.parkNanos(stepPeriod - accumulator);
+        }
+    }
+}
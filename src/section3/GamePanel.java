@@ -1,29 +1,43 @@
 package section3;
 
-import javax.imageio.ImageIO;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * GamePanel encapsulates the game logic including communication with the server
  */
-public class GamePanel extends JPanel implements ActionListener {
+public class GamePanel extends JPanel {
 
     /**
-     * Used for the game loop
+     * Runs the game loop, see step()
      */
-    private Timer timer;
+    private GameLoop loop;
+
+    /**
+     * State of each kart before the last step, for drawing the karts between their last two states.
+     * Indexed like karts, an entry is null until the kart's first step.
+     */
+    private KartState[] previousStates;
 
     /**
      * Stores all the karts. karts[id] is the local player's kart
      */
     Kart[] karts;
 
+    /**
+     * Finds the karts close enough to own kart to be tested for a collision, see checkKartsCollision()
+     */
+    private BroadPhase broadPhase;
+
+    /**
+     * Receives the karts found by the broad phase
+     */
+    private int[] candidates;
+
     /**
      * When debug mode is toggled on, the game objects' colliders are drawn,
      * and any logs or errors are shown directly to the user.
@@ -32,23 +46,45 @@ public class GamePanel extends JPanel implements ActionListener {
     private boolean debugMode;
 
     /**
-     * Frames Per Second, i.e., number of times the game is updated and rendered per second
+     * Draws the game from its own thread when active rendering is on, null otherwise. See startActiveRendering(int).
+     */
+    private ActiveRenderer renderer;
+
+    /**
+     * Held while the game loop updates the game, and while anything else reads or changes what it updates,
+     * e.g. while the karts are drawn
+     */
+    private final ReentrantLock frameLock = new ReentrantLock();
+
+    /**
+     * Frame, render, network wait and decode times, for JMX and the metrics endpoint
+     */
+    final ClientMetrics metrics = new ClientMetrics();
+
+    /**
+     * Number of times the game is updated per second, whatever the number of frames drawn per second
      */
     private final int FPS = 30;
 
-    //Variables related to the game map
-    private Rectangle innerBounds = new Rectangle(150, 200, 550, 300);
-    private Rectangle midBounds = new Rectangle(100, 150, 650, 400);
-    private Rectangle outerBounds = new Rectangle(50, 100, 750, 500);
-    private int trackWidth = 100;
-    private Point startPoint = new Point(425, 500);
+    /**
+     * Time step of each update, in the units of Kart.update(dt)
+     */
+    private final double DT = 0.3;
+
+    /**
+     * The game map
+     */
+    private final Track track = new Track();
 
     //kart image folders
-    private final String KART1_PATH = "karts/kart1/";
-    private final String KART2_PATH = "karts/kart2/";
+    private static final String KART1_PATH = "karts/kart1/";
+    private static final String KART2_PATH = "karts/kart2/";
 
     //map image
-    private final String mapImgPath = "map.png";
+    private static final String mapImgPath = "map.png";
+
+    //sound effects
+    private static final String COLLISION_SOUND = "collision.wav";
     private Image mapImg;
 
     /**
@@ -58,31 +94,66 @@ public class GamePanel extends JPanel implements ActionListener {
     private int id;
 
     /**
-     * Socket of this client
+     * Connection to the server, doing all the network I/O on its own threads. Null until connected.
+     */
+    private ServerConnection connection;
+
+    /**
+     * The world state last applied to the karts, to skip applying the same one again
+     */
+    private WorldState appliedWorld;
+
+    /**
+     * Whether to ask the server for the binary format on the next connection
      */
-    private Socket socket;
+    private boolean binary;
 
-    //Socket IO
-    private BufferedReader in;
-    private PrintWriter out;
+    /**
+     * Whether to ask the server for the datagram transport on the next connection. Implies the binary format.
+     */
+    private boolean udp;
 
     /**
      * Whether this client is connected to a server
      */
     private boolean connected;
 
+    /**
+     * Whether karts are simulated by the server (tick mode) instead of this client.
+     * In tick mode, key presses are sent to the server as input commands and the server pushes snapshots of the world.
+     */
+    private boolean serverTicks;
+
+    /**
+     * Recent states of the other karts, which are shown a little late to smooth out the network's jitter.
+     * Indexed like karts, null until connected.
+     */
+    private JitterBuffer[] remoteKarts;
+
+    /**
+     * Prediction of own kart while the server's snapshots are on their way, only used in tick mode
+     */
+    private Prediction prediction;
+
+    /**
+     * Input commands given since the last input was sent, only used in tick mode
+     */
+    private final StringBuilder pendingCommands = new StringBuilder();
+
+    /**
+     * Sequence number of the last input sent, only used in tick mode
+     */
+    private int inputSeq;
+
     /**
      * Default Constructor - loads map image and initializes everything
      */
     protected GamePanel() {
         setFocusable(true); // otherwise, we can't capture key events
+        metrics.register();
 
-        // load map image
-        try {
-            mapImg = ImageIO.read(getClass().getClassLoader().getResource(mapImgPath));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // load map image, see preloadAssets()
+        mapImg = SpriteCache.image(mapImgPath);
 
         init();
 
@@ -90,33 +161,86 @@ public class GamePanel extends JPanel implements ActionListener {
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent e) {
+                char command;
                 switch (e.getKeyCode()) {
-                    case KeyEvent.VK_LEFT -> karts[id].steerLeft();
-                    case KeyEvent.VK_RIGHT -> karts[id].steerRight();
-                    case KeyEvent.VK_UP -> karts[id].accelerate();
-                    case KeyEvent.VK_DOWN -> karts[id].decelerate();
+                    case KeyEvent.VK_LEFT -> command = Kart.STEER_LEFT;
+                    case KeyEvent.VK_RIGHT -> command = Kart.STEER_RIGHT;
+                    case KeyEvent.VK_UP -> command = Kart.ACCELERATE;
+                    case KeyEvent.VK_DOWN -> command = Kart.DECELERATE;
+                    default -> {
+                        return;
+                    }
+                }
+                frameLock.lock();
+                try {
+                    if (connected && serverTicks)
+                        pendingCommands.append(command);
+                    else
+                        karts[id].apply(command);
+                } finally {
+                    frameLock.unlock();
                 }
             }
         });
 
         // to request focus whenever mouse hovers on the game panel
         // this is necessary when the window has other elements such as text fields
-        addMouseListener(new MouseAdapter() {
+        addMouseListener(focusOnHover);
+    }
+
+    private final MouseAdapter focusOnHover = new MouseAdapter() {
+        @Override
+        public void mouseEntered(MouseEvent e) {
+            requestFocusInWindow();
+        }
+    };
+
+    /**
+     * Draws the game on a canvas from a thread of its own instead of repainting the panel, see {@link ActiveRenderer}.
+     * The game is still updated FPS times per second, the karts being drawn between their last two states.
+     * Must be called once the panel is shown.
+     *
+     * @param framesPerSecond frames drawn per second at most
+     */
+    protected void startActiveRendering(int framesPerSecond) {
+        renderer = new ActiveRenderer(new ActiveRenderer.Scene() {
             @Override
-            public void mouseEntered(MouseEvent e) {
-                requestFocusInWindow();
+            public void drawBackground(Graphics g) {
+                renderMap(g);
             }
-        });
+
+            @Override
+            public boolean drawForeground(Graphics g) {
+                return renderKarts(g);
+            }
+        }, framesPerSecond);
+        // the panel keeps the focus and receives the key presses
+        renderer.canvas.setFocusable(false);
+        renderer.canvas.setBackground(getBackground());
+        renderer.canvas.addMouseListener(focusOnHover);
+        setLayout(new BorderLayout());
+        add(renderer.canvas, BorderLayout.CENTER);
+        revalidate();
+        renderer.start();
     }
 
     /**
-     * Initializes the karts and the timer.
+     * Starts loading the map and kart images and the sound effects in the background, so that they are ready,
+     * or nearly, by the time the panel is built. The karts built on each connection then reuse them.
+     */
+    static void preloadAssets() {
+        SpriteCache.preload(mapImgPath, KART1_PATH, KART2_PATH);
+        SoundEngine.preload(COLLISION_SOUND);
+    }
+
+    /**
+     * Initializes the karts and the game loop.
      * This method allows the same game panel to be reused after a game ends
      */
     protected void init() {
         // Position the two karts at the start line
-        Point kart1Pos = new Point(startPoint.x + trackWidth / 4, startPoint.y + trackWidth / 4);
-        Point kart2Pos = new Point(startPoint.x + trackWidth / 4, startPoint.y + trackWidth / 4 + trackWidth / 2);
+        Point kart1Pos = new Point(track.startPoint.x + track.trackWidth / 4, track.startPoint.y + track.trackWidth / 4);
+        Point kart2Pos = new Point(track.startPoint.x + track.trackWidth / 4, track.startPoint.y + track.trackWidth / 4 + track.trackWidth / 2);
 
         Kart kart1 = new Kart(kart1Pos, new Dimension(35, 25), 0, KART1_PATH);
         Kart kart2 = new Kart(kart2Pos, new Dimension(35, 25), 0, KART2_PATH);
@@ -124,29 +248,71 @@ public class GamePanel extends JPanel implements ActionListener {
         /* my game supports more than two players just as easily as two players
          We only need to assign a new kart in this array.
          The rest is taken care of already according to the current rules.*/
-        karts = new Kart[]{kart1, kart2};
+        frameLock.lock();
+        try {
+            karts = new Kart[]{kart1, kart2};
+            previousStates = new KartState[karts.length];
+            broadPhase = new BroadPhase(karts.length);
+            candidates = new int[karts.length];
+            if (loop != null)
+                loop.stop();
+            loop = new GameLoop(this::step, frameLock, FPS);
+        } finally {
+            frameLock.unlock();
+        }
 
         requestFocusInWindow();
-
-
-        /* delay = (number of millis in 1s) / (frames per second)
-         but not always guaranteed to give the specified fps (depends on many factors)*/
-        if(timer != null)
-            timer.stop();
-        timer = new Timer(1000 / FPS, this);
-        timer.start();
+        loop.start();
     }
 
     @Override
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
+        if (renderer != null)
+            return; // the canvas of the active renderer covers the panel
         renderMap(g);
-        for (var kart : karts) {
-            kart.render(g);
+        frameLock.lock();
+        try {
+            drawKarts(g);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Draws the karts for the active renderer, on its thread
+     *
+     * @return false if the game loop kept the karts for too long
+     */
+    private boolean renderKarts(Graphics g) {
+        try {
+            if (!frameLock.tryLock(5, TimeUnit.MILLISECONDS))
+                return false;
+        } catch (InterruptedException e) {
+            return false;
+        }
+        try {
+            drawKarts(g);
+            return true;
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Draws the karts between their last two states, as far as the time is between the last step and the next one.
+     * frameLock must be held.
+     */
+    private void drawKarts(Graphics g) {
+        long start = System.nanoTime();
+        double alpha = loop.alpha();
+        for (int i = 0; i < karts.length; i++) {
+            karts[i].render(g, previousStates[i], alpha);
         }
         if (debugMode) {
             drawColliders(g);
         }
+        metrics.render(System.nanoTime() - start);
     }
 
     private void renderMap(Graphics g) {
@@ -159,17 +325,17 @@ public class GamePanel extends JPanel implements ActionListener {
 
         Color c1 = Color.GREEN;
         g.setColor(c1);
-        g.fillRect(innerBounds.x, innerBounds.y, innerBounds.width, innerBounds.height); // grass
+        g.fillRect(track.innerBounds.x, track.innerBounds.y, track.innerBounds.width, track.innerBounds.height); // grass
         Color c2 = Color.BLACK;
         g.setColor(c2);
-        g.drawRect(outerBounds.x, outerBounds.y, outerBounds.width, outerBounds.height); // outer edge
-        g.drawRect(innerBounds.x, innerBounds.y, innerBounds.width, innerBounds.height); // inner edge
+        g.drawRect(track.outerBounds.x, track.outerBounds.y, track.outerBounds.width, track.outerBounds.height); // outer edge
+        g.drawRect(track.innerBounds.x, track.innerBounds.y, track.innerBounds.width, track.innerBounds.height); // inner edge
         Color c3 = Color.YELLOW;
         g.setColor(c3);
-        g.drawRect(midBounds.x, midBounds.y, midBounds.width, midBounds.height); // mid-lane marker
+        g.drawRect(track.midBounds.x, track.midBounds.y, track.midBounds.width, track.midBounds.height); // mid-lane marker
         Color c4 = Color.WHITE;
         g.setColor(c4);
-        g.drawLine(startPoint.x, startPoint.y, startPoint.x, startPoint.y + trackWidth); // start line
+        g.drawLine(track.startPoint.x, track.startPoint.y, track.startPoint.x, track.startPoint.y + track.trackWidth); // start line
 
     }
 
@@ -181,87 +347,148 @@ public class GamePanel extends JPanel implements ActionListener {
      */
     private void drawColliders(Graphics g) {
         g.setColor(Color.RED);
-        g.drawRect(outerBounds.x, outerBounds.y, outerBounds.width, outerBounds.height); // outer edge
-        g.drawRect(innerBounds.x, innerBounds.y, innerBounds.width, innerBounds.height); // inner edge
+        g.drawRect(track.outerBounds.x, track.outerBounds.y, track.outerBounds.width, track.outerBounds.height); // outer edge
+        g.drawRect(track.innerBounds.x, track.innerBounds.y, track.innerBounds.width, track.innerBounds.height); // inner edge
 
         for (Kart kart : karts) kart.drawColliders(g);
     }
 
     /**
-     * Game Loop is handled in this function, handles the events fired by the timer
-     *
-     * @param e
+     * Game Loop is handled in this function : updates the game by one step, on the thread of the game loop
+     * with frameLock held
      */
-    @Override
-    public void actionPerformed(ActionEvent e) {
-        checkCollisions();
-        karts[id].update(0.3);
-        if (connected)
-            requestNextFrame();
-        repaint();
+    private void step() {
+        long start = System.nanoTime();
+        for (int i = 0; i < karts.length; i++) {
+            previousStates[i] = karts[i].getState();
+        }
+        if (connected && serverTicks) {
+            String commands = pendingCommands.toString();
+            pendingCommands.setLength(0);
+            // an input is sent every frame, even without commands, so that the server keeps acknowledging
+            connection.sendInput(++inputSeq, commands);
+            applyWorld();
+            if (prediction.step(inputSeq, commands))
+                collisionEffect();
+            karts[id].setState(prediction.shown());
+            showRemoteKarts();
+            checkKartsCollision();
+        } else {
+            checkCollisions();
+            karts[id].update(DT);
+            if (connected) {
+                connection.sendState(karts[id].getState());
+                applyWorld();
+                showRemoteKarts();
+            }
+        }
+        if (renderer == null)
+            repaint();
+        metrics.frame(System.nanoTime() - start);
     }
 
     /**
-     * Sends the local player's kart data to the server
-     * and Requests the data of all the other karts from the server for the next frame.
+     * Updates the karts from the latest world state received from the server, if any arrived since the last frame.
+     * Never waits for the server. The other karts' states are buffered, see showRemoteKarts().
+     * In tick mode, own kart's state from the server corrects the prediction, otherwise own kart is simulated here alone.
      */
-    private synchronized void requestNextFrame() {
-
-        //send own kart data
-        out.println("P1#" + karts[id].encode());
-        out.flush();
-
-        try {
-            // first the server sends the number of karts(excluding our kart)
-            // for example if we are playing with one other player, server will send 1 instead of 2.
-            // Then it will send the data of the other player's kart.
-
-            String line = in.readLine().trim();
-            if (line.length() > 1 && line.substring(0, 2).equals("P0")) {
-                String message = "The client " + line.substring(2) + " left." +
-                        " You can continue playing alone or disconnect and restart the game.";
-                JOptionPane.showMessageDialog(this, message);
-
-            }
-            int numKarts = Integer.parseInt(line);
-            log("number of other karts = " + numKarts + "\n");
-
-
-            if (numKarts < 1) {
-                log("No other player connected !");
-                return;
-                //no other player is connected, don't wait for the server to send kart data
-            }
-
-            // receive the karts data and update the karts
-            for (int i = 1; i <= numKarts; i++) {
+    private void applyWorld() {
+        WorldState world = connection.getWorld();
+        if (world == appliedWorld)
+            return;
+        appliedWorld = world;
+        // snapshots are stamped with the time the server sent them, the replies to P1 requests only with their arrival
+        long tickPeriod = serverTicks ? connection.getTickPeriod() : 0;
+        for (int i = 0; i < karts.length; i++) {
+            KartState state = world.get(i);
+            if (state == null)
+                continue;
+            if (i != id) {
+                if (tickPeriod > 0)
+                    remoteKarts[i].add(world.tick * tickPeriod, world.updatedAt(i), state);
+                else if (world.updatedAt(i) > remoteKarts[i].lastTime())
+                    remoteKarts[i].add(world.updatedAt(i), state);
+            } else if (serverTicks)
+                prediction.reconcile(state, world.ackedInput);
+        }
+    }
 
-                String response = in.readLine();
-                System.out.println(response);
-                // server sends the data in the form - <Client Index>?<Client's kart data>
-                int idx = Integer.parseInt(response.substring(0, response.indexOf('?')));
-                String kartData = response.substring(response.indexOf('?') + 1);
-                karts[idx].decode(kartData);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Moves the other karts to where they are to be shown in this frame, interpolated between their buffered states
+     */
+    private void showRemoteKarts() {
+        long now = System.nanoTime();
+        for (int i = 0; i < karts.length; i++) {
+            KartState state = i == id ? null : remoteKarts[i].sample(now);
+            if (state != null)
+                karts[i].setState(state);
         }
     }
 
+    /**
+     * Tells the player that another client left the game
+     *
+     * @param clientId id of the client that left
+     */
+    private void otherClientLeft(String clientId) {
+        String message = "The client " + clientId + " left." +
+                " You can continue playing alone or disconnect and restart the game.";
+        JOptionPane.showMessageDialog(this, message);
+    }
+
     /**
      * Connect to the specified server and port
      *
      * @return whether or not the connection was successful
      */
     protected boolean connect(String server, int port) {
-        try {
-            socket = new Socket(server, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream());
-            id = Integer.parseInt(in.readLine().trim());
+        connection = new ServerConnection(new ServerConnection.Listener() {
+            @Override
+            public void clientLeft(String clientId) {
+                // never from the network threads, the dialog would stop them until it is closed
+                SwingUtilities.invokeLater(() -> otherClientLeft(clientId));
+            }
 
-            log("Connected to Server.\nIdentification received : " + id + '\n');
-            connected = true;
+            @Override
+            public void log(String message) {
+                GamePanel.this.log(message);
+            }
+
+            @Override
+            public void stateReplied(long latency) {
+                metrics.networkWait(latency);
+            }
+
+            @Override
+            public void inputAcknowledged(long latency) {
+                metrics.networkWait(latency);
+            }
+
+            @Override
+            public void decoded(long nanos) {
+                metrics.decoded(nanos);
+            }
+        });
+        try {
+            connection.connect(server, port, binary, udp, serverTicks);
+            frameLock.lock(); // the game loop goes on meanwhile
+            try {
+                id = connection.getId();
+                appliedWorld = null;
+                remoteKarts = new JitterBuffer[karts.length];
+                for (int i = 0; i < remoteKarts.length; i++) {
+                    remoteKarts[i] = new JitterBuffer();
+                }
+                if (serverTicks) {
+                    connection.join(karts[id].getState());
+                    prediction = new Prediction(track, DT, karts[id].getState());
+                    pendingCommands.setLength(0);
+                    log("Joined the tick mode\n");
+                }
+                connected = true;
+            } finally {
+                frameLock.unlock();
+            }
             requestFocusInWindow();
             return true;
         } catch (Exception e) {
@@ -275,103 +502,106 @@ public class GamePanel extends JPanel implements ActionListener {
      * Game Over
      */
     void gameOver() {
-        timer.stop();
+        loop.stop();
         log("section3.Game Over !!");
         disconnect();
-        JOptionPane.showMessageDialog(null, "Game Over !");
+        // never from the game loop's thread, which holds frameLock
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Game Over !"));
     }
 
     /**
      * Disconnects from the server
      */
     protected void disconnect() {
-        connected = false;
+        frameLock.lock();
         try {
-            //First notify the server that we are going to disconnect
-            if(out == null)
+            if (!connected)
                 return;
-            out.println("P0#" + karts[id].encode());
-            out.flush();
-
-            socket.close();//actually disconnect from the server
-        } catch (Exception e) {
-            e.printStackTrace();
+            connected = false;
+            //notify the server that we are going to disconnect, then actually disconnect
+            connection.disconnect(karts[id].getState());
+        } finally {
+            frameLock.unlock();
         }
     }
 
     /**
      * Checks all the collisions.
-     * Collisions are checked using bounding boxes
+     * Collisions are checked using the karts' turned boxes
      */
     private void checkCollisions() {
+        if (checkKartsCollision())
+            return;
+        if (track.checkKartCollision(karts[id]))
+            collisionEffect();
+    }
+
+    /**
+     * Checks own kart's collision with the other karts.
+     *
+     * @return whether own kart collided with another kart
+     */
+    private boolean checkKartsCollision() {
 
         // if own kart collides with any other kart, game over.
         // in my game's current version, collision of any two karts means 'game over' for all players
         // this can be changed, but it is out of this project's current scope.
+
+        // only the karts the broad phase finds near own kart are tested exactly
         for (int i = 0; i < karts.length; i++) {
-            if (i == id)
-                continue; // don't check collision with self
-            if (karts[id].getShape().intersects(karts[i].getShape().getBounds())) {
+            broadPhase.update(i, karts[i]);
+        }
+        int found = broadPhase.overlaps(id, candidates);
+        for (int c = 0; c < found; c++) {
+            int i = candidates[c];
+            if (karts[id].intersects(karts[i])) {
                 collisionEffect();
                 gameOver();
-                return;
+                return true;
             }
         }
-        checkKartCollision(karts[id], innerBounds, outerBounds);
+        return false;
     }
 
     /**
-     * Checks kart's collision with the game objects in the map other than karts.
-     *
-     * @param kart        the kart which is to be checked
-     * @param innerBounds inner bounds of the map
-     * @param outerBounds outer bounds of the map
+     * PLays the collision sound effect, see {@link SoundEngine}
      */
-    private void checkKartCollision(Kart kart, Rectangle innerBounds, Rectangle outerBounds) {
-
-        Shape kartBounds = kart.getShape();
-        if (kartBounds.intersects(innerBounds)) {
-            kart.stop();
-
-            if (!kart.isStuck()) {
-                collisionEffect();
-                System.out.println("Inner collision");
-                kart.setStuck(true);
-            }
-        } else if (!outerBounds.contains(kartBounds.getBounds())) {
-            kart.stop();
-            if (!kart.isStuck()) {
-                collisionEffect();
-                System.out.println("Outer collision");
-                kart.setStuck(true);
-            }
-        } else {
-            kart.setStuck(false);
-        }
-
+    private void collisionEffect() {
+        SoundEngine.play(COLLISION_SOUND);
     }
 
     /**
-     * PLays the collision sound effect
+     * @return whether the client is connected to a server or not
      */
-    private void collisionEffect() {
+    public boolean isConnected() {
+        return connected;
+    }
 
-        try {
-            String soundPath = "collision.wav";
-            Clip collisionClip = AudioSystem.getClip();
-            collisionClip.open(AudioSystem.getAudioInputStream(getClass().getClassLoader().getResource(soundPath)));
-            collisionClip.start();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Set whether the karts are simulated by the server. Takes effect on the next connection.
+     *
+     * @param serverTicks whether to use the tick mode
+     */
+    protected void setServerTicks(boolean serverTicks) {
+        this.serverTicks = serverTicks;
+    }
 
+    /**
+     * Set whether to ask the server for the binary format. Takes effect on the next connection.
+     *
+     * @param binary whether to use the binary format
+     */
+    protected void setBinary(boolean binary) {
+        this.binary = binary;
     }
 
     /**
-     * @return whether the client is connected to a server or not
+     * Set whether to ask the server for the datagram transport. Takes effect on the next connection.
+     *
+     * @param udp whether to send state traffic in datagrams
      */
-    public boolean isConnected() {
-        return connected;
+    protected void setUdp(boolean udp) {
+        this.udp = udp;
     }
 
     /**
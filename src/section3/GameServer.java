@@ -3,26 +3,19 @@ package section3;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.StringTokenizer;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * A Game Server for Racing Kart game.
- * It can handle multiple clients in separate threads.
+ * This window is a front end of the {@link ServerEngine}, which can also run without it.
  */
 public class GameServer extends JFrame {
-    private static final int DEFAULT_PORT = 12345;
 
     /**
-     * Port on which the server is listening
+     * Number of lines the transcript keeps, older ones are in the log file
      */
-    private int serverPort;
+    private static final int MAX_TRANSCRIPT_LINES = 500;
 
     /**
      * To allow the section3.GameServer to run as a stand alone application
@@ -30,16 +23,14 @@ public class GameServer extends JFrame {
      * @param args
      */
     public static void main(String[] args) {
+        if (GraphicsEnvironment.isHeadless()) {
+            // no display to show the window on
+            ServerEngine.main(args);
+            return;
+        }
         new GameServer();
     }
 
-    /**
-     * All the client threads. Each clients' requests are handled in a separate client thread.
-     */
-    ArrayList<ClientThread> clientThreads;
-
-    HashMap<String, String> karts;
-
     /**
      * ActionListener to handle events from buttons.
      */
@@ -49,6 +40,16 @@ public class GameServer extends JFrame {
      * Port text box
      */
     JTextField portT;
+
+    /**
+     * To choose how client sockets are serviced
+     */
+    JComboBox<ServerEngine.Mode> modeComboBox;
+
+    /**
+     * Tick rate text box
+     */
+    JTextField tickRateT;
     /**
      * Button to execute the server
      */
@@ -70,37 +71,44 @@ public class GameServer extends JFrame {
     JCheckBox finalizeCheckBox;
 
     /**
-     * The server activity is shown here.
+     * To choose the lowest level of the messages logged
      */
-    JTextArea transcript;
+    JComboBox<ServerLog.Level> logLevelComboBox;
 
     /**
-     * whether the server should be finalized when the last client disconnects
+     * The latest server activity is shown here.
      */
-    private boolean finalize;
-
-    /**
-     * Server socket to listen for client sockets.
-     */
-    ServerSocket serverSocket;
+    JTextArea transcript;
 
     /**
-     * Number of connected clients
+     * The server activity is logged here, then written to the log file and the transcript
      */
-    int nClients;
+    final ServerLog serverLog;
 
     /**
-     * is the server running?
+     * The server itself
      */
-    boolean running;
+    final ServerEngine engine;
 
     /**
      * Initializes a section3.Game server and displays the GUI window.
      */
     public GameServer() {
         initActionListener();
-        clientThreads = new ArrayList<>();
-        karts = new HashMap<>();
+        serverLog = new ServerLog(new File("server.log"), this::appendTranscript);
+        serverLog.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(serverLog::stop));
+        engine = new ServerEngine(serverLog, ServerEngine.DEFAULT_MAX_CLIENTS, ServerEngine.DEFAULT_ROOM_SIZE, new ServerEngine.Listener() {
+            @Override
+            public void error(String message) {
+                showError(message);
+            }
+
+            @Override
+            public void stopped() {
+                SwingUtilities.invokeLater(GameServer.this::serverStopped);
+            }
+        });
         JPanel mainPanel = new JPanel();
         JLabel logoLabel;
         try {
@@ -117,9 +125,17 @@ public class GameServer extends JFrame {
         // Text fields and labels
         JLabel portL = new JLabel("Port :");
         btnP.add(portL);
-        portT = new JTextField(DEFAULT_PORT + "");
+        portT = new JTextField(ServerEngine.DEFAULT_PORT + "");
         btnP.add(portT);
 
+        modeComboBox = new JComboBox<>(ServerEngine.Mode.values());
+        btnP.add(modeComboBox);
+
+        JLabel tickRateL = new JLabel("Ticks/s :");
+        btnP.add(tickRateL);
+        tickRateT = new JTextField(ServerEngine.DEFAULT_TICK_RATE + "", 3);
+        btnP.add(tickRateT);
+
         exec = new JButton("Execute");
         exec.addActionListener(actionListener);
         btnP.add(exec);
@@ -133,6 +149,13 @@ public class GameServer extends JFrame {
         finalizeCheckBox.addActionListener(actionListener);
         btnP.add(finalizeCheckBox);
 
+        JLabel logLevelL = new JLabel("Log :");
+        btnP.add(logLevelL);
+        logLevelComboBox = new JComboBox<>(ServerLog.Level.values());
+        logLevelComboBox.setSelectedItem(serverLog.getLevel());
+        logLevelComboBox.addActionListener(actionListener);
+        btnP.add(logLevelComboBox);
+
         end = new JButton("End");
         end.setEnabled(false);
         end.addActionListener(actionListener);
@@ -157,76 +180,74 @@ public class GameServer extends JFrame {
     }
 
     /**
-     * Executes the server.
-     * The serverSocket is initialized and starts listening on the serverPort in a new thread.
+     * Executes the server on the port, in the mode and at the tick rate chosen.
      */
     private void exec() {
+        int serverPort;
         try {
             serverPort = Integer.parseInt(portT.getText().trim());
         } catch (NumberFormatException e) {
             showError("Invalid port" + portT.getText());
             return;
         }
+        int tickRate;
         try {
-            serverSocket = new ServerSocket(serverPort);
-
-        } catch (Exception e) {
+            tickRate = Integer.parseInt(tickRateT.getText().trim());
+            if (tickRate < 1)
+                throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            showError("Invalid tick rate" + tickRateT.getText());
+            return;
+        }
+        try {
+            engine.start(serverPort, (ServerEngine.Mode) modeComboBox.getSelectedItem(), tickRate);
+        } catch (IOException e) {
             showError("Failed to initialize server socket");
+            return;
         }
-        running = true;
-        new Thread(() -> {
-            //Listen for new connections while the server is running.
-            while (running) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    ClientThread clientThread = new ClientThread(socket);
-                    clientThreads.add(clientThread);
-                    clientThread.start();
-                    showDataButton.setEnabled(true);
-                } catch (Exception e) {
-                    showError(e.getMessage());
-                }
-            }
-        }).start();
 
-        log("Listening on Port : " + serverPort);
         exec.setEnabled(false);
+        modeComboBox.setEnabled(false);
+        tickRateT.setEnabled(false);
+        showDataButton.setEnabled(true);
         end.setEnabled(true);
     }
 
     /**
-     * Shows each client's kart data.
+     * Shows each client's kart data, along with the server's figures.
      */
     private void showKartsData() {
-        log("\nsection3.Game All clients data : ");
-        log("\n");
-        for (String key : karts.keySet()) {
-            log(karts.get(key) + "\n");
+        engine.log("section3.Game All clients data : ");
+        for (int number = 0; number < engine.rooms.length(); number++) {
+            Room room = engine.rooms.get(number);
+            if (room == null)
+                continue;
+            engine.log("Room " + number + " :");
+            for (int id = 0; id < room.registry.limit(); id++) {
+                KartState state = room.registry.kart(id);
+                if (state != null)
+                    engine.log(id + " : " + state);
+            }
         }
+        engine.log(engine.getStats().toString());
     }
 
     /**
-     * Disconnects all the clients and closes the serverSocket.
+     * Disconnects all the clients and stops the server.
      */
     private void end() {
-        for (ClientThread client : clientThreads) {
-            try {
-                log("Disconnecting Player : " + client.id);
-                client.socket.close();
-                client.running = false;
-            } catch (Exception e) {
-                showError("Failed to disconnect client " + client.id + ": " + e.getMessage());
-            }
-        }
-        try {
-            serverSocket.close();
-        } catch (Exception e) {
-            showError("Failed to close the Server : " + e.getMessage());
-        }
-        log("Server closed.");
-        running = false;
+        engine.stop();
+        serverStopped();
+    }
 
+    /**
+     * Lets the server be executed again, once it stopped
+     */
+    private void serverStopped() {
         exec.setEnabled(true);
+        modeComboBox.setEnabled(true);
+        tickRateT.setEnabled(true);
+        showDataButton.setEnabled(false);
         end.setEnabled(false);
     }
 
@@ -242,154 +263,41 @@ public class GameServer extends JFrame {
             } else if (e.getSource() == end) {
                 end();
             } else if (e.getSource() == finalizeCheckBox) {
-                finalize = finalizeCheckBox.isSelected();
+                engine.setFinalize(finalizeCheckBox.isSelected());
+            } else if (e.getSource() == logLevelComboBox) {
+                serverLog.setLevel((ServerLog.Level) logLevelComboBox.getSelectedItem());
             }
         };
     }
 
     /**
-     * Logs a given message to the transcript.
+     * Appends lines written by the log to the transcript, keeping only the last MAX_TRANSCRIPT_LINES.
+     * Called on the log's writer thread with a batch of lines at a time.
      *
-     * @param message
+     * @param lines the lines, each ending with a line terminator
      */
-    synchronized void log(String message) {
-        transcript.append(message + "\n");
+    private void appendTranscript(String lines) {
+        SwingUtilities.invokeLater(() -> {
+            transcript.append(lines);
+            int excess = transcript.getLineCount() - MAX_TRANSCRIPT_LINES;
+            if (excess > 0) {
+                try {
+                    transcript.replaceRange("", 0, transcript.getLineStartOffset(excess));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
     }
 
     /**
      * Shows an error dialog.
+     * The dialog is shown on the event dispatch thread, so the calling client thread is not blocked until it is closed.
      *
      * @param errorMessage message to be shown in the dialog
      */
-    synchronized void showError(String errorMessage) {
-        JOptionPane.showMessageDialog(this, errorMessage, "Error !", JOptionPane.ERROR_MESSAGE);
-    }
-
-    /**
-     * Handles interaction of the server with a client
-     */
-    private class ClientThread extends Thread {
-
-        /**
-         * is this client running ?
-         */
-        boolean running;
-
-        /**
-         * Socket of this client
-         */
-        private final Socket socket;
-
-        /**
-         * To read data from the socket.
-         */
-        private BufferedReader in;
-
-        /**
-         * To write data to the socket
-         */
-        private PrintWriter out;
-
-        /**
-         * Id of this client.
-         * By storing the client's id in its thread, we don't need to rely on the client's requests to infer its id.
-         */
-        String id;
-
-        /**
-         * Initializes the in, out and sends an identificatin to the connected client.
-         *
-         * @param socket Socket associated with this client.
-         */
-        private ClientThread(Socket socket) {
-            this.socket = socket;
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream());
-                id = nClients++ + ""; //client id start from 0.
-                log("New Client Connected. Identification : " + id);
-                out.println(id);
-                out.flush();
-                running = true;
-            } catch (Exception e) {
-                showError("I/O Error occurred : " + e.getMessage());
-            }
-        }
-
-        /**
-         * Continuously listens to the client's.
-         * when the client stops, the client's data is stored.
-         * If it was the last client and finalize is true, the server closes.
-         */
-        public void run() {
-            String line;
-            while (running) {
-                try {
-                    line = in.readLine();
-                    handleClientRequest(line);
-
-                } catch (Exception e) {
-                    showError("Failed to load client request" + e.getMessage());
-                    break;
-                }
-            }
-            log("Client " + id + " left the game");
-
-            if (--nClients == 0 && finalize) {
-                log("Last client closed.");
-                end();
-            }
-        }
-
-        /**
-         * Handles a client request as per the protocols described in the assignment document.
-         *
-         * @param request the client request
-         */
-        private synchronized void handleClientRequest(String request) {
-            if (request == null) {
-                log("Client " + id + " closed");
-                return;
-            }
-            log(request);
-            StringTokenizer st = new StringTokenizer(request.trim(), "#");
-
-            String protocol = st.nextToken();
-
-            if (protocol.equals("P0")) {
-                try {
-                    socket.close();
-                    log("Client closed : " + id);
-                    log("Game Over !");
-                    for(var client: clientThreads) {
-                        if(client.id != id) {
-                            client.out.println("P0#" + id);
-                        }
-                    }
-                    running = false;
-                } catch (Exception e) {
-                    showError("Failed to close socket");
-                }
-            } else if (protocol.equals("P1")) {
-                String data = st.nextToken();
-                int numKarts = karts.size() - 1;
-                karts.put(id, data.trim());
-                log("Kart Data received from : " + id );
-                log("Number of karts '" + (numKarts) + "' sent to client " + id);
-                out.println(numKarts + "");
-                out.flush();
-                if (numKarts < 1)
-                    return;
-                for (var client : clientThreads) {
-                    if (!client.id.equals(id)) {
-                        out.println(client.id + "?" + karts.get(client.id));
-                        out.flush();
-                        log("Kart " + client.id + " Data " + karts.get(client.id) + " sent to : " + id + "\n");
-                    }
-                }
-                log("----------------------");
-
-            }
-        }
+    void showError(String errorMessage) {
+        SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, errorMessage, "Error !", JOptionPane.ERROR_MESSAGE));
     }
 }
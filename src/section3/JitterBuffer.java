@@ -0,0 +1,174 @@
+package section3;
+
+/**
+ * Recent states of a remote kart, played out a little late so that its motion stays smooth whatever the network
+ * does.
+ * <p>
+ * States are kept with the time the server sent them, e.g. their tick in tick mode, so that a late state is still
+ * played at its place. A kart is shown as it was {@code delay} ago, interpolated between the two states around that
+ * time. The delay adapts to the network : it is the mean transit time of the states, arrival minus sending, plus the
+ * mean interval between states and a margin for the jitter of their transit, so it is short on a steady connection
+ * and grows when states arrive irregularly. When no state has arrived for longer than the delay, the kart keeps
+ * moving along its last velocity for a short while, then waits for the next state.
+ * <p>
+ * States the server doesn't stamp, the replies to P1 requests, are kept with the time they arrived instead. Their
+ * transit is then taken to be 0, and their jitter is the deviation of the interval between their arrivals.
+ */
+class JitterBuffer {
+
+    /**
+     * Number of states kept
+     */
+    private static final int CAPACITY = 32;
+
+    //Bounds of the playout delay, in nanoseconds
+    private static final long MIN_DELAY = 5_000_000;
+    private static final long MAX_DELAY = 300_000_000;
+
+    /**
+     * How far past the sending of the last state the kart is extrapolated, in nanoseconds
+     */
+    private static final long MAX_EXTRAPOLATION = 100_000_000;
+
+    /**
+     * Margin of the playout delay, in mean deviations of the interval between states
+     */
+    private static final double JITTER_MARGIN = 3;
+
+    /**
+     * Fraction of the difference to the target delay made up each frame, so that the delay changes smoothly
+     */
+    private static final double DELAY_ADAPTATION = 0.05;
+
+    //States and sending times, in a ring. newest is the index of the latest state
+    private final long[] times = new long[CAPACITY];
+    private final KartState[] states = new KartState[CAPACITY];
+    private int newest = -1;
+    private int count;
+
+    /**
+     * When the latest state arrived, in System.nanoTime() units
+     */
+    private long lastArrival;
+
+    //Mean transit time, mean interval between states and mean deviation of the transit time, in nanoseconds.
+    //The transit time includes the offset between the server's clock and this one.
+    private double meanTransit;
+    private double meanInterval;
+    private double jitter;
+
+    /**
+     * Current playout delay in nanoseconds, the mean transit time included
+     */
+    private double delay;
+
+    /**
+     * Whether a state has been played, before which the delay is not set
+     */
+    private boolean playing;
+
+    /**
+     * Adds a state received from the server, stamped with the time it was sent
+     *
+     * @param sentAt    when it was sent, in nanoseconds from any origin as long as it is the same for every state
+     * @param arrivedAt when it arrived, in System.nanoTime() units
+     * @param state     the kart's state
+     */
+    void add(long sentAt, long arrivedAt, KartState state) {
+        add(sentAt, arrivedAt, state, true);
+    }
+
+    /**
+     * Adds a state received from the server without the time it was sent
+     *
+     * @param time  when it arrived, in System.nanoTime() units
+     * @param state the kart's state
+     */
+    void add(long time, KartState state) {
+        add(time, time, state, false);
+    }
+
+    private void add(long sentAt, long arrivedAt, KartState state, boolean stamped) {
+        if (count > 0) {
+            if (sentAt <= times[newest])
+                return;
+            double interval = sentAt - times[newest];
+            if (count == 1) {
+                meanInterval = interval;
+            } else {
+                // the same estimators as for the jitter of RTP, RFC 3550. Without the sending times, the states are
+                // taken to be sent at regular intervals
+                double deviation = stamped ? arrivedAt - lastArrival - interval : interval - meanInterval;
+                jitter += (Math.abs(deviation) - jitter) / 16;
+                meanInterval += (interval - meanInterval) / 8;
+            }
+        }
+        double transit = arrivedAt - sentAt;
+        meanTransit = count == 0 ? transit : meanTransit + (transit - meanTransit) / 8;
+        lastArrival = arrivedAt;
+        newest = (newest + 1) % CAPACITY;
+        times[newest] = sentAt;
+        states[newest] = state;
+        count = Math.min(count + 1, CAPACITY);
+    }
+
+    /**
+     * @return sending time of the latest state, or its arrival time if it wasn't stamped, Long.MIN_VALUE if there is
+     * none
+     */
+    long lastTime() {
+        return count == 0 ? Long.MIN_VALUE : times[newest];
+    }
+
+    /**
+     * Gives the kart's state to show now, and adapts the playout delay
+     *
+     * @param now the current time, in System.nanoTime() units
+     * @return the state, or null if no state has been received
+     */
+    KartState sample(long now) {
+        if (count == 0)
+            return null;
+        double target = meanTransit + Math.min(Math.max(meanInterval + JITTER_MARGIN * jitter, MIN_DELAY), MAX_DELAY);
+        delay = playing ? delay + (target - delay) * DELAY_ADAPTATION : target;
+        playing = true;
+        long playout = now - (long) delay;
+
+        if (playout >= times[newest])
+            return extrapolate(playout);
+        // find the two states around the playout time, from the newest
+        for (int i = 1; i < count; i++) {
+            int older = (newest - i + CAPACITY) % CAPACITY;
+            if (times[older] <= playout) {
+                int newer = (older + 1) % CAPACITY;
+                double f = (double) (playout - times[older]) / (times[newer] - times[older]);
+                return interpolate(states[older], states[newer], f);
+            }
+        }
+        // older than everything kept
+        return states[(newest - count + 1 + CAPACITY) % CAPACITY];
+    }
+
+    /**
+     * Moves the latest state along the kart's last velocity, at most MAX_EXTRAPOLATION past its sending
+     */
+    private KartState extrapolate(long playout) {
+        if (count < 2)
+            return states[newest];
+        int previous = (newest - 1 + CAPACITY) % CAPACITY;
+        double f = (double) Math.min(playout - times[newest], MAX_EXTRAPOLATION) / (times[newest] - times[previous]);
+        return interpolate(states[previous], states[newest], 1 + f);
+    }
+
+    /**
+     * @param f where between a (0) and b (1), beyond 1 to extrapolate
+     * @return the position interpolated between a and b, with the rest of the state of the nearest one
+     */
+    private static KartState interpolate(KartState a, KartState b, double f) {
+        double x = a.centerX + (b.centerX - a.centerX) * f;
+        double y = a.centerY + (b.centerY - a.centerY) * f;
+        KartState nearest = f < 0.5 ? a : b;
+        return new KartState((int) Math.round(x), (int) Math.round(y), nearest.sizeX, nearest.sizeY,
+                nearest.speed, nearest.direction, nearest.stuck);
+    }
+}
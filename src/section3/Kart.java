@@ -1,15 +1,20 @@
 package section3;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.io.IOException;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
 
 /**
  * A simple kart object in the game - Encapsulates kart movement, rendering and encoding/decoding
  */
 public class Kart {
+
+    //Input commands, as sent by a client to a server that simulates the karts
+    public static final char STEER_LEFT = 'L';
+    public static final char STEER_RIGHT = 'R';
+    public static final char ACCELERATE = 'U';
+    public static final char DECELERATE = 'D';
+
     /**
      * Kart center coordinates
      */
@@ -46,9 +51,14 @@ public class Kart {
     }
 
     /**
-     * Kart images for each of the 16 directions(0 to 15)
+     * The kart's box for collision tests, rebuilt only if the kart's size changes
+     */
+    private KartBox box;
+
+    /**
+     * Kart images for each of the 16 directions(0 to 15), shared by all the karts using the same images
      */
-    private Image[] images;
+    private SpriteCache.Sprites images;
 
     /**
      * @param center      center of the kart
@@ -57,14 +67,18 @@ public class Kart {
      * @param imgRootPath Path to the folder containing images for each direction
      */
     public Kart(Point center, Dimension dim, int direction, String imgRootPath) {
-        images = new Image[16];
-        for (int i = 0; i < images.length; i++) {
-            try {
-                images[i] = ImageIO.read(getClass().getClassLoader().getResource(imgRootPath + i + ".png"));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        this(center, dim, direction);
+        images = SpriteCache.get(imgRootPath);
+    }
+
+    /**
+     * Creates a kart without images, e.g. for the server which only simulates karts and never renders them
+     *
+     * @param center    center of the kart
+     * @param dim       dimension of the kart
+     * @param direction initial direction
+     */
+    public Kart(Point center, Dimension dim, int direction) {
         this.centerX = center.x;
         this.centerY = center.y;
         this.sizeX = dim.width;
@@ -78,9 +92,29 @@ public class Kart {
      * @param g
      */
     public void render(Graphics g) {
-        if (images != null && images[direction] != null) {
-            g.drawImage(images[direction], centerX - 25, centerY - 22, null);
-        } else {
+        draw(g, centerX, centerY, direction);
+    }
+
+    /**
+     * Renders the kart between a previous state and its current one, e.g. between two steps of the game loop.
+     * The kart is turned as it is now.
+     *
+     * @param g     graphics context to be used for drawing
+     * @param from  the previous state, null to render the kart where it is now
+     * @param alpha how far the kart is drawn from the previous state to the current one, from 0 to 1
+     */
+    public void render(Graphics g, KartState from, double alpha) {
+        if (from == null) {
+            render(g);
+            return;
+        }
+        int x = (int) Math.round(from.centerX + (centerX - from.centerX) * alpha);
+        int y = (int) Math.round(from.centerY + (centerY - from.centerY) * alpha);
+        draw(g, x, y, direction);
+    }
+
+    private void draw(Graphics g, int x, int y, int direction) {
+        if (images == null || !images.draw(g, direction, x - 25, y - 22)) {
             System.out.println("Kart image not loaded");
         }
     }
@@ -125,6 +159,20 @@ public class Kart {
             speed = 0;
     }
 
+    /**
+     * Applies an input command
+     *
+     * @param command one of STEER_LEFT, STEER_RIGHT, ACCELERATE and DECELERATE. Other values are ignored.
+     */
+    public void apply(char command) {
+        switch (command) {
+            case STEER_LEFT -> steerLeft();
+            case STEER_RIGHT -> steerRight();
+            case ACCELERATE -> accelerate();
+            case DECELERATE -> decelerate();
+        }
+    }
+
     /**
      * Updates the kart position
      *
@@ -142,9 +190,62 @@ public class Kart {
         speed = 0;
     }
 
+    public int getCenterX() {
+        return centerX;
+    }
+
+    public int getCenterY() {
+        return centerY;
+    }
+
+    /**
+     * @return no part of the kart is further than this from its center, whatever its direction
+     */
+    public int getRadius() {
+        return (int) Math.sqrt(sizeX * sizeX + sizeY * sizeY) / 2 + 1;
+    }
+
     /**
-     * Returns the shape of the kart.
-     * The bounding box of the returned shape can be used for collision detection
+     * Checks whether this kart's box intersects another kart's box, without allocating anything
+     *
+     * @param other the other kart
+     * @return whether the karts collide
+     */
+    public boolean intersects(Kart other) {
+        return box().intersects(centerX, centerY, direction, other.box(), other.centerX, other.centerY, other.direction);
+    }
+
+    /**
+     * Checks whether the kart's box intersects the inside of a rectangle, as getShape().intersects(rect) does,
+     * without allocating anything
+     *
+     * @param rect the rectangle
+     * @return whether the kart overlaps the rectangle
+     */
+    public boolean intersects(Rectangle rect) {
+        return box().intersects(centerX, centerY, direction, rect);
+    }
+
+    /**
+     * Checks whether the bounding box of the kart is inside a rectangle, as rect.contains(getShape().getBounds())
+     * does, without allocating anything
+     *
+     * @param rect the rectangle
+     * @return whether the kart is inside the rectangle
+     */
+    public boolean isInside(Rectangle rect) {
+        return box().isInside(centerX, centerY, direction, rect);
+    }
+
+    private KartBox box() {
+        if (box == null || box.sizeX != sizeX || box.sizeY != sizeY)
+            box = new KartBox(sizeX, sizeY);
+        return box;
+    }
+
+    /**
+     * Returns the shape of the kart, for drawing its colliders.
+     * The collision tests use the same box through intersects() and isInside(), which don't allocate
      *
      * @return shape of the kart
      */
@@ -168,6 +269,28 @@ public class Kart {
         g2d.draw(bounds);
     }
 
+    /**
+     * @return a copy of the kart's state
+     */
+    public KartState getState() {
+        return new KartState(centerX, centerY, sizeX, sizeY, speed, direction, stuck);
+    }
+
+    /**
+     * Updates this kart's properties from the given state
+     *
+     * @param state
+     */
+    public void setState(KartState state) {
+        this.centerX = state.centerX;
+        this.centerY = state.centerY;
+        this.sizeX = state.sizeX;
+        this.sizeY = state.sizeY;
+        this.speed = state.speed;
+        this.direction = state.direction;
+        this.stuck = state.stuck;
+    }
+
     /**
      * Encodes the kart data in a simple String format.
      * This string format is used to pass the kart data between the server and clients
@@ -175,9 +298,7 @@ public class Kart {
      * @return
      */
     public String encode() {
-        String s;
-        s = centerX + "-" + centerY + "-" + sizeX + "-" + sizeY + "-" + speed + "-" + direction + "-" + stuck;
-        return s;
+        return getState().encode();
     }
 
     /**
@@ -186,14 +307,24 @@ public class Kart {
      * @param kartData
      */
     public void decode(String kartData) {
-        StringTokenizer st = new StringTokenizer(kartData, "-");
-        this.centerX = Integer.parseInt(st.nextToken());
-        this.centerY = Integer.parseInt(st.nextToken());
-        this.sizeX = Integer.parseInt(st.nextToken());
-        this.sizeY = Integer.parseInt(st.nextToken());
-        this.speed = Integer.parseInt(st.nextToken());
-        this.direction = Integer.parseInt(st.nextToken());
-
-        this.stuck = Boolean.parseBoolean(st.nextToken());
+        setState(KartState.decode(kartData));
+    }
+
+    /**
+     * Encodes the kart data in the binary format, see {@link KartState}
+     *
+     * @param buffer buffer to write to
+     */
+    public void encode(ByteBuffer buffer) {
+        getState().encode(buffer);
+    }
+
+    /**
+     * Decodes kart data in the binary format and updates this kart's properties accordingly
+     *
+     * @param buffer buffer to read from
+     */
+    public void decode(ByteBuffer buffer) {
+        setState(KartState.decode(buffer));
     }
 }
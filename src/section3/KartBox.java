@@ -0,0 +1,181 @@
+package section3;
+
+import java.awt.*;
+
+/**
+ * The box of a kart of a given size, turned to each of the 16 directions, for the collision tests.
+ * <p>
+ * The offsets of the box's corners from the kart's center are computed once for every direction, so that a kart's
+ * box is its center plus a lookup in these tables. The boxes are tested against each other and against the walls of
+ * the track with the separating axis test : two convex shapes don't intersect if and only if their projections on one
+ * of their edges' normals don't overlap. Nothing is allocated by the tests, unlike {@link Kart#getShape()} which is
+ * only used for drawing now.
+ * <p>
+ * The box is the same as the one of {@link Kart#getShape()}, so the walls of the track are hit exactly as with the
+ * shapes.
+ */
+final class KartBox {
+
+    private static final int DIRECTIONS = 16;
+
+    //Length and width axes of the box turned to each direction, as unit vectors
+    private static final double[] LENGTH_X = new double[DIRECTIONS], LENGTH_Y = new double[DIRECTIONS];
+    private static final double[] WIDTH_X = new double[DIRECTIONS], WIDTH_Y = new double[DIRECTIONS];
+
+    static {
+        for (int d = 0; d < DIRECTIONS; d++) {
+            // the shape is turned by -PI / 8 * direction, on a y axis pointing down
+            double angle = Math.PI / 8 * d;
+            double cos = exact(Math.cos(angle)), sin = exact(Math.sin(angle));
+            LENGTH_X[d] = cos;
+            LENGTH_Y[d] = -sin;
+            WIDTH_X[d] = sin;
+            WIDTH_Y[d] = cos;
+        }
+    }
+
+    final int sizeX, sizeY;
+
+    /**
+     * Offsets of the corners from the center, 4 per direction : corner c of direction d is at index d * 4 + c
+     */
+    private final double[] cornerX = new double[DIRECTIONS * 4], cornerY = new double[DIRECTIONS * 4];
+
+    //Offsets of the bounding rectangle from the center, for each direction, rounded outwards
+    private final int[] boundsMinX = new int[DIRECTIONS], boundsMaxX = new int[DIRECTIONS];
+    private final int[] boundsMinY = new int[DIRECTIONS], boundsMaxY = new int[DIRECTIONS];
+
+    KartBox(int sizeX, int sizeY) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        // the same rectangle as getShape(), which is off center by half a unit for odd sizes
+        int[] x = {-(sizeX / 2), sizeX - sizeX / 2, sizeX - sizeX / 2, -(sizeX / 2)};
+        int[] y = {-(sizeY / 2), -(sizeY / 2), sizeY - sizeY / 2, sizeY - sizeY / 2};
+        for (int d = 0; d < DIRECTIONS; d++) {
+            double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int c = 0; c < 4; c++) {
+                double cx = x[c] * LENGTH_X[d] + y[c] * WIDTH_X[d];
+                double cy = x[c] * LENGTH_Y[d] + y[c] * WIDTH_Y[d];
+                cornerX[d * 4 + c] = cx;
+                cornerY[d * 4 + c] = cy;
+                minX = Math.min(minX, cx);
+                maxX = Math.max(maxX, cx);
+                minY = Math.min(minY, cy);
+                maxY = Math.max(maxY, cy);
+            }
+            boundsMinX[d] = (int) Math.floor(minX);
+            boundsMaxX[d] = (int) Math.ceil(maxX);
+            boundsMinY[d] = (int) Math.floor(minY);
+            boundsMaxY[d] = (int) Math.ceil(maxY);
+        }
+    }
+
+    /**
+     * Whether two turned boxes intersect
+     *
+     * @param centerX   center of the first box
+     * @param centerY   center of the first box
+     * @param direction direction of the first box
+     * @param other     size of the second box
+     * @param oCenterX  center of the second box
+     * @param oCenterY  center of the second box
+     * @param oDirection direction of the second box
+     */
+    boolean intersects(int centerX, int centerY, int direction,
+                       KartBox other, int oCenterX, int oCenterY, int oDirection) {
+        return !separates(LENGTH_X[direction], LENGTH_Y[direction], centerX, centerY, direction, other, oCenterX, oCenterY, oDirection)
+                && !separates(WIDTH_X[direction], WIDTH_Y[direction], centerX, centerY, direction, other, oCenterX, oCenterY, oDirection)
+                && !separates(LENGTH_X[oDirection], LENGTH_Y[oDirection], centerX, centerY, direction, other, oCenterX, oCenterY, oDirection)
+                && !separates(WIDTH_X[oDirection], WIDTH_Y[oDirection], centerX, centerY, direction, other, oCenterX, oCenterY, oDirection);
+    }
+
+    /**
+     * Whether a turned box intersects the inside of a rectangle, as {@link Shape#intersects(java.awt.geom.Rectangle2D)}
+     *
+     * @param centerX   center of the box
+     * @param centerY   center of the box
+     * @param direction direction of the box
+     * @param rect      the rectangle
+     */
+    boolean intersects(int centerX, int centerY, int direction, Rectangle rect) {
+        // the rectangle's axes
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int c = direction * 4; c < direction * 4 + 4; c++) {
+            minX = Math.min(minX, centerX + cornerX[c]);
+            maxX = Math.max(maxX, centerX + cornerX[c]);
+            minY = Math.min(minY, centerY + cornerY[c]);
+            maxY = Math.max(maxY, centerY + cornerY[c]);
+        }
+        if (maxX <= rect.x || minX >= rect.x + rect.width || maxY <= rect.y || minY >= rect.y + rect.height)
+            return false;
+        // the box's axes
+        return !separates(LENGTH_X[direction], LENGTH_Y[direction], centerX, centerY, direction, rect)
+                && !separates(WIDTH_X[direction], WIDTH_Y[direction], centerX, centerY, direction, rect);
+    }
+
+    /**
+     * Whether the bounding rectangle of a turned box is inside a rectangle, as
+     * rect.contains(kart.getShape().getBounds())
+     *
+     * @param centerX   center of the box
+     * @param centerY   center of the box
+     * @param direction direction of the box
+     * @param rect      the rectangle
+     */
+    boolean isInside(int centerX, int centerY, int direction, Rectangle rect) {
+        return centerX + boundsMinX[direction] >= rect.x && centerX + boundsMaxX[direction] <= rect.x + rect.width
+                && centerY + boundsMinY[direction] >= rect.y && centerY + boundsMaxY[direction] <= rect.y + rect.height;
+    }
+
+    /**
+     * @return whether the projections of two boxes on an axis don't overlap
+     */
+    private boolean separates(double axisX, double axisY, int centerX, int centerY, int direction,
+                              KartBox other, int oCenterX, int oCenterY, int oDirection) {
+        double center = centerX * axisX + centerY * axisY;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (int c = direction * 4; c < direction * 4 + 4; c++) {
+            double p = center + cornerX[c] * axisX + cornerY[c] * axisY;
+            min = Math.min(min, p);
+            max = Math.max(max, p);
+        }
+        double oCenter = oCenterX * axisX + oCenterY * axisY;
+        double oMin = Double.MAX_VALUE, oMax = -Double.MAX_VALUE;
+        for (int c = oDirection * 4; c < oDirection * 4 + 4; c++) {
+            double p = oCenter + other.cornerX[c] * axisX + other.cornerY[c] * axisY;
+            oMin = Math.min(oMin, p);
+            oMax = Math.max(oMax, p);
+        }
+        return max <= oMin || oMax <= min;
+    }
+
+    /**
+     * @return whether the projections of a box and a rectangle on an axis don't overlap
+     */
+    private boolean separates(double axisX, double axisY, int centerX, int centerY, int direction, Rectangle rect) {
+        double center = centerX * axisX + centerY * axisY;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (int c = direction * 4; c < direction * 4 + 4; c++) {
+            double p = center + cornerX[c] * axisX + cornerY[c] * axisY;
+            min = Math.min(min, p);
+            max = Math.max(max, p);
+        }
+        // the rectangle projects between its two corners furthest along the axis
+        double x0 = rect.x * axisX, x1 = (rect.x + rect.width) * axisX;
+        double y0 = rect.y * axisY, y1 = (rect.y + rect.height) * axisY;
+        double rMin = Math.min(x0, x1) + Math.min(y0, y1);
+        double rMax = Math.max(x0, x1) + Math.max(y0, y1);
+        return max <= rMin || rMax <= min;
+    }
+
+    /**
+     * @return the value, with the rounding errors of the sines and cosines of the right angles removed
+     */
+    private static double exact(double value) {
+        if (Math.abs(value) < 1e-12)
+            return 0;
+        if (Math.abs(Math.abs(value) - 1) < 1e-12)
+            return Math.signum(value);
+        return value;
+    }
+}
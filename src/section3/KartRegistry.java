@@ -0,0 +1,134 @@
+package section3;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The server's table of connected clients and their karts, indexed by client id.
+ * <p>
+ * Ids are small ints, the lowest free one is given to each new client, so they can index fixed-capacity arrays.
+ * Each slot is published atomically : a kart's state is replaced as a whole by a new immutable {@link KartState},
+ * and readers building a reply or a snapshot just read the slots up to {@link #limit()}. Nothing here locks, so a
+ * client thread broadcasting to every client never holds up one updating its kart, and the other way round.
+ */
+final class KartRegistry {
+
+    private final AtomicReferenceArray<ClientConnection> clients;
+    private final AtomicReferenceArray<KartState> karts;
+
+    /**
+     * 1 for each id in use, from the moment it is reserved until its client is removed
+     */
+    private final AtomicIntegerArray reserved;
+
+    /**
+     * Every id in use is below this, so readers don't need to scan the whole capacity
+     */
+    private final AtomicInteger limit = new AtomicInteger();
+
+    //Number of clients and karts in the table
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger kartCount = new AtomicInteger();
+
+    /**
+     * @param capacity maximum number of clients connected at the same time
+     */
+    KartRegistry(int capacity) {
+        clients = new AtomicReferenceArray<>(capacity);
+        karts = new AtomicReferenceArray<>(capacity);
+        reserved = new AtomicIntegerArray(capacity);
+    }
+
+    /**
+     * @return maximum number of clients connected at the same time
+     */
+    int capacity() {
+        return reserved.length();
+    }
+
+    /**
+     * Reserves the lowest free id for a new client. The client is added with {@link #add(int, ClientConnection)}
+     * once it knows its id, or the id is given back with {@link #remove(int)}.
+     *
+     * @return the id, or -1 if the table is full
+     */
+    int reserve() {
+        for (int id = 0; id < reserved.length(); id++) {
+            if (reserved.get(id) == 0 && reserved.compareAndSet(id, 0, 1)) {
+                limit.accumulateAndGet(id + 1, Math::max);
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a client under the id reserved for it
+     */
+    void add(int id, ClientConnection client) {
+        clients.set(id, client);
+        size.incrementAndGet();
+    }
+
+    /**
+     * Removes a client and its kart, and frees its id
+     *
+     * @param id the client's id
+     * @return number of clients left
+     */
+    int remove(int id) {
+        int remaining = size.get();
+        if (clients.getAndSet(id, null) != null)
+            remaining = size.decrementAndGet();
+        if (karts.getAndSet(id, null) != null)
+            kartCount.decrementAndGet();
+        reserved.set(id, 0); // last, the next client given this id finds its slots empty
+        return remaining;
+    }
+
+    /**
+     * @return the client with the given id, or null if there is none
+     */
+    ClientConnection client(int id) {
+        return clients.get(id);
+    }
+
+    /**
+     * @return the latest state of the client's kart, or null if the client hasn't sent it
+     */
+    KartState kart(int id) {
+        return karts.get(id);
+    }
+
+    /**
+     * Publishes the latest state of a client's kart. Ignored if the client is gone.
+     */
+    void setKart(int id, KartState state) {
+        if (clients.get(id) == null)
+            return;
+        if (karts.getAndSet(id, state) == null)
+            kartCount.incrementAndGet();
+    }
+
+    /**
+     * @return every id in use is below this
+     */
+    int limit() {
+        return limit.get();
+    }
+
+    /**
+     * @return number of connected clients
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return number of clients whose kart is known
+     */
+    int kartCount() {
+        return kartCount.get();
+    }
+}
@@ -0,0 +1,99 @@
+package section3;
+
+import java.nio.ByteBuffer;
+import java.util.StringTokenizer;
+
+/**
+ * An immutable copy of a kart's state, i.e. everything about a kart that is passed between the server and clients.
+ * It can be encoded in the original text format (see {@link Kart#encode()}) as well as a compact binary format.
+ * <p>
+ * Binary layout, {@value #BINARY_SIZE} bytes :
+ * centerX (short), centerY (short), sizeX (unsigned byte), sizeY (unsigned byte), speed (unsigned byte),
+ * direction in the low 4 bits and stuck in bit 4 of the last byte.
+ */
+public final class KartState {
+
+    /**
+     * Size of a kart state in the binary format
+     */
+    public static final int BINARY_SIZE = 8;
+
+    /**
+     * Bit of the packed direction byte telling whether the kart is stuck
+     */
+    static final int STUCK_BIT = 0x10;
+
+    final int centerX, centerY;
+    final int sizeX, sizeY;
+    final int speed;
+    final int direction;
+    final boolean stuck;
+
+    public KartState(int centerX, int centerY, int sizeX, int sizeY, int speed, int direction, boolean stuck) {
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.speed = speed;
+        this.direction = direction;
+        this.stuck = stuck;
+    }
+
+    /**
+     * Encodes the state in the text format
+     *
+     * @return the state as a String
+     */
+    public String encode() {
+        return centerX + "-" + centerY + "-" + sizeX + "-" + sizeY + "-" + speed + "-" + direction + "-" + stuck;
+    }
+
+    /**
+     * Decodes a state from the text format
+     *
+     * @param kartData the state as a String
+     * @return the decoded state
+     */
+    public static KartState decode(String kartData) {
+        StringTokenizer st = new StringTokenizer(kartData, "-");
+        return new KartState(Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken()),
+                Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken()),
+                Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken()),
+                Boolean.parseBoolean(st.nextToken()));
+    }
+
+    /**
+     * Encodes the state in the binary format, at the buffer's position
+     *
+     * @param buffer buffer with at least BINARY_SIZE bytes remaining
+     */
+    public void encode(ByteBuffer buffer) {
+        buffer.putShort((short) centerX);
+        buffer.putShort((short) centerY);
+        buffer.put((byte) sizeX);
+        buffer.put((byte) sizeY);
+        buffer.put((byte) speed);
+        buffer.put((byte) (direction | (stuck ? STUCK_BIT : 0)));
+    }
+
+    /**
+     * Decodes a state from the binary format, at the buffer's position
+     *
+     * @param buffer buffer with at least BINARY_SIZE bytes remaining
+     * @return the decoded state
+     */
+    public static KartState decode(ByteBuffer buffer) {
+        int centerX = buffer.getShort();
+        int centerY = buffer.getShort();
+        int sizeX = buffer.get() & 0xFF;
+        int sizeY = buffer.get() & 0xFF;
+        int speed = buffer.get() & 0xFF;
+        int packed = buffer.get();
+        return new KartState(centerX, centerY, sizeX, sizeY, speed, packed & 0x0F, (packed & STUCK_BIT) != 0);
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,282 @@
+package section3;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a running server with simulated clients, without any GUI, to measure how it copes as clients are added.
+ * <p>
+ * Each bot connects with a {@link ServerConnection}, as the game does, drives its own kart in laps around the track
+ * and sends its state with a P1 request at a fixed rate, at most one request being in flight at a time like
+ * the game. The number of bots ramps up in steps, and after each step the generator prints the replies per second,
+ * the percentiles of the time from a request to its reply, and the errors so far : bots that failed to connect, and
+ * bots whose request was left without a reply for longer than REPLY_TIMEOUT. Such a bot stops there, as the game
+ * would stay waiting for the reply. The bots connected, refused and timed out add up to the number asked for.
+ * Bots leave with a P0 at the end.
+ * <p>
+ * Run with : java section3.LoadGenerator [--host localhost] [--port 12345] [--clients 10,50,100,200,500]
+ * [--duration &lt;seconds per step&gt;] [--rate &lt;requests per second per bot&gt;] [--binary]
+ */
+public class LoadGenerator {
+
+    /**
+     * Milliseconds after which a request without a reply is counted as an error, and its bot stopped
+     */
+    static final long REPLY_TIMEOUT = 1000;
+
+    /**
+     * Time step of the bots' karts, as the game's
+     */
+    private static final double DT = 0.3;
+
+    /**
+     * A simulated client
+     */
+    private final class Bot implements ServerConnection.Listener {
+
+        private final ServerConnection connection = new ServerConnection(this);
+
+        private final Kart kart = new Kart(new Point(), new Dimension(35, 25), 0);
+
+        /**
+         * Where on the lap the kart started, in track units
+         */
+        private final int start;
+
+        private final int speed;
+
+        private long step;
+
+        /**
+         * When the request awaiting its reply was sent, 0 if none
+         */
+        private volatile long requestSentAt;
+
+        /**
+         * Whether a request timed out, the bot then no longer sends anything
+         */
+        private volatile boolean timedOut;
+
+        Bot(Random random) {
+            start = random.nextInt(lapLength());
+            speed = 20 + 10 * random.nextInt(5);
+            drive();
+        }
+
+        /**
+         * Moves the kart along its script and sends its state, unless the reply to the previous one is awaited
+         */
+        void tick() {
+            if (timedOut)
+                return;
+            step++;
+            drive();
+            long now = System.nanoTime();
+            long sentAt = requestSentAt;
+            if (sentAt != 0 && now - sentAt > TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT)) {
+                // the connection keeps waiting for the reply, as the game's would, so nothing can be sent anymore
+                timedOut = true;
+                timeouts.incrementAndGet();
+                return;
+            }
+            if (connection.sendState(kart.getState()))
+                requestSentAt = now;
+        }
+
+        /**
+         * Puts the kart where its script says : driving laps along the middle of the track, counterclockwise from
+         * the start line, at a steady speed
+         */
+        private void drive() {
+            Rectangle lane = track.midBounds;
+            int distance = (int) ((start + step * speed * DT) % lapLength());
+            int x, y, direction;
+            if (distance < lane.width) { // bottom, to the right
+                x = lane.x + distance;
+                y = lane.y + lane.height;
+                direction = 0;
+            } else if ((distance -= lane.width) < lane.height) { // right, up
+                x = lane.x + lane.width;
+                y = lane.y + lane.height - distance;
+                direction = 4;
+            } else if ((distance -= lane.height) < lane.width) { // top, to the left
+                x = lane.x + lane.width - distance;
+                y = lane.y;
+                direction = 8;
+            } else { // left, down
+                distance -= lane.width;
+                x = lane.x;
+                y = lane.y + distance;
+                direction = 12;
+            }
+            kart.setState(new KartState(x, y, 35, 25, speed, direction, false));
+        }
+
+        @Override
+        public void stateReplied(long latency) {
+            requestSentAt = 0;
+            histogram.record(latency);
+        }
+
+        @Override
+        public void clientLeft(String clientId) {
+        }
+
+        @Override
+        public void log(String message) {
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+
+    /**
+     * Requests per second per bot
+     */
+    private final int rate;
+
+    private final Track track = new Track();
+
+    private final List<Bot> bots = new ArrayList<>();
+
+    private final ScheduledExecutorService ticker =
+            Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "bots");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Latencies of the current step
+     */
+    private volatile LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     * Bots whose request timed out, since the start
+     */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Bots that failed to connect, since the start. They count towards the number of bots asked for, so that a
+     * server refusing clients isn't asked again at every step.
+     */
+    private int failedConnections;
+
+    private final Random random = new Random(1);
+
+    LoadGenerator(String host, int port, boolean binary, int rate) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.rate = rate;
+    }
+
+    /**
+     * @return length of a lap along the middle of the track
+     */
+    private int lapLength() {
+        return 2 * (track.midBounds.width + track.midBounds.height);
+    }
+
+    /**
+     * Adds bots until there are the given number of them, each ticking at the rate from a random time on
+     */
+    void rampTo(int clients) {
+        long period = 1_000_000_000L / rate;
+        while (bots.size() + failedConnections < clients) {
+            Bot bot = new Bot(random);
+            try {
+                bot.connection.connect(host, port, binary, false, false);
+            } catch (IOException | RuntimeException e) {
+                failedConnections++;
+                continue;
+            }
+            bots.add(bot);
+            ticker.scheduleAtFixedRate(() -> {
+                try {
+                    bot.tick();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // the bot goes on with its next tick
+                }
+            }, random.nextInt((int) period), period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Measures the current bots for a while, then prints a line of figures
+     *
+     * @param clients number of bots asked for
+     * @param seconds how long to measure
+     */
+    void measure(int clients, int seconds) throws InterruptedException {
+        histogram = new LatencyHistogram();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        LatencyHistogram measured = histogram;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long timedOut = timeouts.get();
+        System.out.printf("%8d %9d %11.0f %9.2f %9.2f %9.2f %9.2f %9d %9d%n", clients, bots.size() - timedOut,
+                measured.count() / elapsed, measured.percentile(0.5) / 1000.0, measured.percentile(0.9) / 1000.0,
+                measured.percentile(0.99) / 1000.0, measured.max() / 1000.0, failedConnections, timedOut);
+    }
+
+    /**
+     * Stops the bots, which leave the server
+     */
+    void stop() {
+        ticker.shutdownNow();
+        for (Bot bot : bots) {
+            bot.connection.disconnect(bot.kart.getState());
+        }
+    }
+
+    /**
+     * Options : --host &lt;server&gt;, --port &lt;port&gt;, --clients &lt;comma separated numbers of bots of each
+     * step&gt;, --duration &lt;seconds per step&gt;, --rate &lt;requests per second per bot&gt;, --binary.
+     *
+     * @param args the options
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String host = "localhost";
+        int port = 12345;
+        String clients = "10,50,100,200,500";
+        int duration = 10;
+        int rate = 30;
+        boolean binary = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host" -> host = args[++i];
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--clients" -> clients = args[++i];
+                    case "--duration" -> duration = Integer.parseInt(args[++i]);
+                    case "--rate" -> rate = Integer.parseInt(args[++i]);
+                    case "--binary" -> binary = true;
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + "\nOptions : [--host <server>] [--port <port>] [--clients 10,50,100]"
+                    + " [--duration <seconds per step>] [--rate <requests/s per bot>] [--binary]");
+            System.exit(1);
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, binary, rate);
+        System.out.printf("%8s %9s %11s %9s %9s %9s %9s %9s %9s%n", "clients", "connected", "replies/s",
+                "p50 ms", "p90 ms", "p99 ms", "max ms", "refused", "timeouts");
+        for (String step : clients.split(",")) {
+            int n = Integer.parseInt(step.trim());
+            generator.rampTo(n);
+            generator.measure(n, duration);
+        }
+        generator.stop();
+    }
+}
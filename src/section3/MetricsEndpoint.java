@@ -0,0 +1,111 @@
+package section3;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Serves metrics as plain text on http://127.0.0.1:&lt;port&gt;/metrics, for a scraper such as Prometheus to collect.
+ * <p>
+ * Only the loopback interface is listened on : the figures are for whoever runs the process, an agent on the same
+ * machine forwards them if need be. Each line is a metric name, optional labels and a value, in the Prometheus
+ * text format, e.g. <code>kart_server_requests_total 1234</code>.
+ */
+final class MetricsEndpoint {
+
+    private final HttpServer http;
+
+    /**
+     * @param port    port to listen on, 0 for any free port
+     * @param metrics builds the text served, on each scrape
+     * @throws IOException if the port can't be bound
+     */
+    MetricsEndpoint(int port, Supplier<String> metrics) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> serve(exchange, metrics));
+    }
+
+    /**
+     * Starts serving, on a thread of the HTTP server
+     */
+    void start() {
+        http.start();
+    }
+
+    void stop() {
+        http.stop(0);
+    }
+
+    /**
+     * @return port listened on
+     */
+    int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    private static void serve(HttpExchange exchange, Supplier<String> metrics) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body;
+            try {
+                body = metrics.get().getBytes(StandardCharsets.UTF_8);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Appends a line for a counter or a gauge
+     */
+    static void metric(StringBuilder text, String name, Object value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends the percentiles of a histogram as a summary : one line per quantile, then the count and the sum
+     *
+     * @param name name of the summary, ending with its unit
+     */
+    static void summary(StringBuilder text, String name, LatencyHistogram histogram) {
+        metric(text, name + "{quantile=\"0.5\"}", histogram.percentile(0.5));
+        metric(text, name + "{quantile=\"0.9\"}", histogram.percentile(0.9));
+        metric(text, name + "{quantile=\"0.99\"}", histogram.percentile(0.99));
+        metric(text, name + "{quantile=\"0.999\"}", histogram.percentile(0.999));
+        metric(text, name + "{quantile=\"1\"}", histogram.max());
+        metric(text, name + "_count", histogram.count());
+        metric(text, name + "_sum", histogram.sum());
+    }
+
+    /**
+     * @return the percentiles of a histogram for JMX, in microseconds, see {@link ServerMetricsMXBean}
+     */
+    static Map<String, Long> percentiles(LatencyHistogram histogram) {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        percentiles.put("p50", histogram.percentile(0.5));
+        percentiles.put("p90", histogram.percentile(0.9));
+        percentiles.put("p99", histogram.percentile(0.99));
+        percentiles.put("p99.9", histogram.percentile(0.999));
+        percentiles.put("max", histogram.max());
+        percentiles.put("count", histogram.count());
+        return percentiles;
+    }
+}
@@ -0,0 +1,546 @@
+package section3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server mode.
+ * Sockets are accepted on one thread and spread round robin over a small pool of event loops.
+ * Each event loop services all of its clients with a single Selector, so the number of threads
+ * no longer grows with the number of connected clients.
+ * Both the text protocol and the binary format (see {@link WireCodec}) are spoken.
+ */
+class NioServer {
+
+    /**
+     * Size of the buffer each event loop reads into
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Longest request line accepted, a client sending a longer one is disconnected
+     */
+    static final int MAX_LINE_LENGTH = 4 * 1024;
+
+    /**
+     * Most bytes queued for a client that doesn't read them, beyond which it is disconnected
+     */
+    static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    /**
+     * The server whose protocol is spoken over the channels
+     */
+    private final ServerEngine server;
+
+    /**
+     * Channel to listen for new clients
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * The event loops clients are spread across
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * is the server running?
+     */
+    private volatile boolean running;
+
+    /**
+     * Binds the server channel. No thread is started until {@link #start()}.
+     *
+     * @param server the game server handling the requests
+     * @param port   port to listen on
+     * @param nLoops number of event loop threads
+     * @throws IOException if the port can't be bound
+     */
+    NioServer(ServerEngine server, int port, int nLoops) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        loops = new EventLoop[nLoops];
+        for (int i = 0; i < nLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and the accept loop.
+     */
+    void start() {
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        new Thread(this::acceptLoop, "nio-accept").start();
+    }
+
+    /**
+     * Stops accepting clients, closes every connection and stops the event loops.
+     */
+    void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            server.error("Failed to close the Server : " + e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Accepts new clients while the server is running and hands each one to the next event loop.
+     */
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                Connection connection;
+                try {
+                    connection = new Connection(channel, loop);
+                } catch (IOException e) {
+                    channel.close(); // the server is full
+                    throw e;
+                }
+                server.metrics.acceptQueued();
+                loop.register(connection);
+            } catch (ClosedChannelException e) {
+                break; // the server has been stopped
+            } catch (IOException e) {
+                server.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A single thread multiplexing many client channels with one Selector
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Thread thread;
+
+        /**
+         * Shared by all the connections of this loop, since reads are only done on the loop's thread
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        /**
+         * Connections accepted but not yet registered with the selector
+         */
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Connections with data queued by other threads
+         */
+        private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        /**
+         * Hands over a new connection to this loop. Can be called from any thread.
+         */
+        private void register(Connection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks this loop to write out the data queued on a connection. Can be called from any thread.
+         */
+        private void requestFlush(Connection connection) {
+            if (Thread.currentThread() == thread) {
+                connection.flush();
+                return;
+            }
+            flushes.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    server.error("Selector failed : " + e.getMessage());
+                    break;
+                }
+                Connection connection;
+                while ((connection = registrations.poll()) != null) {
+                    connection.register();
+                }
+                while ((connection = flushes.poll()) != null) {
+                    try {
+                        connection.flush();
+                    } catch (RuntimeException e) {
+                        connection.fail(e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (Connection) key.attachment();
+                    // a malformed request only drops its client, the loop goes on with the others
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException e) {
+                        connection.fail(e);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A client serviced by an event loop.
+     * Reads, request handling and writes all happen on the loop's thread;
+     * other threads only queue lines and ask the loop to flush them.
+     */
+    private class Connection implements ClientConnection {
+
+        private final SocketChannel channel;
+
+        private final EventLoop loop;
+
+        private SelectionKey key;
+
+        /**
+         * Id of this client in its room, assigned on the accept thread just like the ClientHandler ids
+         */
+        private final int id;
+
+        /**
+         * The room the client is seated in
+         */
+        private final Room room;
+
+        /**
+         * The line being received. Protocol lines are plain ASCII.
+         */
+        private final StringBuilder line = new StringBuilder();
+
+        /**
+         * Received bytes not yet handled, once the client switched to the binary format.
+         * Kept in write mode between reads.
+         */
+        private ByteBuffer inbound;
+
+        /**
+         * Whether the client switched to the binary format
+         */
+        private volatile boolean binary;
+
+        /**
+         * Lines and frames waiting to be written to the channel
+         */
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Bytes in outbound not written yet
+         */
+        private final AtomicInteger queuedBytes = new AtomicInteger();
+
+        /**
+         * Set once more than MAX_QUEUED_BYTES were queued, the loop then disconnects the client
+         */
+        private volatile boolean overflowed;
+
+        private volatile boolean open = true;
+
+        /**
+         * Whether the server has already been told that this client left
+         */
+        private boolean left;
+
+        private Connection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            Room.Seat seat = server.joinRoom();
+            room = seat.room;
+            id = seat.id;
+        }
+
+        /**
+         * Registers the channel with the loop's selector and sends the identification to the client.
+         */
+        private void register() {
+            server.metrics.acceptDequeued();
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                server.error("I/O Error occurred : " + e.getMessage());
+                leave();
+                return;
+            }
+            server.clientConnected(this);
+            send(id + "");
+        }
+
+        @Override
+        public int getClientId() {
+            return id;
+        }
+
+        @Override
+        public Room getRoom() {
+            return room;
+        }
+
+        @Override
+        public void send(String message) {
+            if (!open) {
+                server.metrics.writeDropped();
+                return;
+            }
+            enqueue(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            if (!open) {
+                server.metrics.writeDropped();
+                return;
+            }
+            enqueue(frame.duplicate());
+        }
+
+        /**
+         * Replies are sent on the loop's thread, where the parts are written straight away in one gathered write.
+         * Only what the socket doesn't take, or what is sent from other threads, is copied to be queued.
+         * The check of the queue, the write and the queuing of the rest are done under the lock enqueue takes,
+         * so that nothing sent from another thread meanwhile, e.g. a snapshot, goes out in the middle of the reply.
+         */
+        @Override
+        public void send(ByteBuffer[] parts) {
+            if (!open) {
+                server.metrics.writeDropped();
+                return;
+            }
+            ByteBuffer[] views = new ByteBuffer[parts.length];
+            int size = 0;
+            for (int i = 0; i < parts.length; i++) {
+                views[i] = parts[i].duplicate();
+                size += views[i].remaining();
+            }
+            synchronized (this) {
+                if (Thread.currentThread() == loop.thread && outbound.isEmpty() && key != null && key.isValid()) {
+                    try {
+                        int written = (int) channel.write(views);
+                        server.metrics.sent(written);
+                        size -= written;
+                    } catch (IOException e) {
+                        server.metrics.writeFailed();
+                        close(); // the read loop sees it and leaves
+                        return;
+                    }
+                    if (size == 0)
+                        return;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(size);
+                for (ByteBuffer view : views) {
+                    copy.put(view);
+                }
+                enqueue(copy.flip());
+            }
+        }
+
+        /**
+         * Queues data to be written on the loop's thread, unless the client already has too much waiting
+         */
+        private synchronized void enqueue(ByteBuffer buffer) {
+            if (queuedBytes.addAndGet(buffer.remaining()) > MAX_QUEUED_BYTES) {
+                queuedBytes.addAndGet(-buffer.remaining());
+                server.metrics.writeDropped();
+                overflowed = true;
+            } else {
+                outbound.add(buffer);
+            }
+            loop.requestFlush(this);
+        }
+
+        /**
+         * Queues the message in the format picked under the lock startBinary holds, see {@link ClientConnection}
+         */
+        @Override
+        public synchronized void sendLeave(int clientId) {
+            if (binary)
+                send(WireCodec.leaveFrame(clientId));
+            else
+                send("P0#" + clientId);
+        }
+
+        @Override
+        public synchronized void startBinary() {
+            send(WireCodec.NEGOTIATION);
+            inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            binary = true;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                server.error("Failed to disconnect client " + id + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Reads whatever is available and handles every complete line.
+         */
+        private void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                leave();
+                return;
+            }
+            server.metrics.received(n);
+            buffer.flip();
+            while (buffer.hasRemaining() && !binary) {
+                char c = (char) buffer.get();
+                if (c == '\n') {
+                    String request = line.toString();
+                    line.setLength(0);
+                    server.handleClientRequest(this, request);
+                    if (!open) {
+                        leave();
+                        return;
+                    }
+                } else if (c != '\r') {
+                    if (line.length() >= MAX_LINE_LENGTH) {
+                        server.error("Client " + id + " sent a line longer than " + MAX_LINE_LENGTH + " bytes");
+                        leave();
+                        return;
+                    }
+                    line.append(c);
+                }
+            }
+            if (binary) {
+                readFrames(buffer);
+            }
+        }
+
+        /**
+         * Appends the received bytes to the ones left over from previous reads and handles every complete frame.
+         */
+        private void readFrames(ByteBuffer buffer) {
+            if (inbound.remaining() < buffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + buffer.remaining()));
+                inbound.flip();
+                larger.put(inbound);
+                inbound = larger;
+            }
+            inbound.put(buffer);
+            inbound.flip();
+            ByteBuffer frame;
+            while ((frame = WireCodec.nextFrame(inbound)) != null) {
+                server.handleClientFrame(this, frame);
+                if (!open) {
+                    leave();
+                    return;
+                }
+            }
+            inbound.compact();
+        }
+
+        /**
+         * Writes as much of the queued data as the socket accepts.
+         * Write interest is only kept while there is something left to write.
+         */
+        private void flush() {
+            if (overflowed) {
+                server.error("Client " + id + " doesn't read what it is sent, " + MAX_QUEUED_BYTES + " bytes queued");
+                leave();
+                return;
+            }
+            if (key == null || !key.isValid())
+                return;
+            try {
+                ByteBuffer buffer;
+                while ((buffer = outbound.peek()) != null) {
+                    int written = channel.write(buffer);
+                    queuedBytes.addAndGet(-written);
+                    server.metrics.sent(written);
+                    if (buffer.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                server.metrics.writeFailed();
+                leave();
+            }
+        }
+
+        /**
+         * Drops the client after a failure to handle it, as the thread modes do. Only called on the loop's thread.
+         */
+        private void fail(RuntimeException e) {
+            server.error("Failed to load client request " + id + " : " + e);
+            leave();
+        }
+
+        /**
+         * Closes the connection and tells the server that this client left. Only called on the loop's thread.
+         */
+        private void leave() {
+            if (left)
+                return;
+            left = true;
+            close();
+            server.clientLeft(this);
+        }
+    }
+}
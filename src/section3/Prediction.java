@@ -0,0 +1,139 @@
+package section3;
+
+import java.awt.*;
+import java.util.ArrayDeque;
+
+/**
+ * Client side prediction of own kart in tick mode.
+ * <p>
+ * The server is the authority on own kart, but its snapshots arrive a round trip late. Instead of waiting for them,
+ * each input is applied to own kart right away, the same way the server does (see TickLoop) : apply the commands,
+ * move, then collide with the track. Inputs are kept until the server acknowledges them. When a snapshot arrives,
+ * the kart is reset to the server's state and the inputs the server hasn't applied yet are replayed on top of it.
+ * <p>
+ * A misprediction is not corrected at once : the difference the replay makes is kept as an offset on the shown
+ * position, which shrinks every frame, so the kart glides back on track instead of jumping.
+ */
+class Prediction {
+
+    /**
+     * Maximum number of unacknowledged inputs kept, older ones are given up
+     */
+    private static final int MAX_INPUTS = 64;
+
+    /**
+     * Fraction of the correction offset removed each frame
+     */
+    private static final double CORRECTION_RATE = 0.2;
+
+    /**
+     * Offsets larger than this many pixels are dropped at once, the kart was far off anyway
+     */
+    private static final double MAX_CORRECTION = 60;
+
+    private final Track track;
+
+    /**
+     * Time step of each input, in the units of Kart.update(dt)
+     */
+    private final double dt;
+
+    /**
+     * Own kart as predicted, i.e. the server's last state with the unacknowledged inputs applied
+     */
+    private final Kart kart;
+
+    /**
+     * Inputs the server hasn't acknowledged yet, oldest first
+     */
+    private final ArrayDeque<Input> inputs = new ArrayDeque<>();
+
+    //Correction offset of the shown position
+    private double errorX, errorY;
+
+    /**
+     * @param track the track, to collide with as the server does
+     * @param dt    time step of each input
+     * @param state own kart's initial state
+     */
+    Prediction(Track track, double dt, KartState state) {
+        this.track = track;
+        this.dt = dt;
+        kart = new Kart(new Point(state.centerX, state.centerY), new Dimension(state.sizeX, state.sizeY), state.direction);
+        kart.setState(state);
+    }
+
+    /**
+     * Applies a new input to the predicted kart and keeps it until the server acknowledges it
+     *
+     * @param seq      sequence number of the input
+     * @param commands the input commands, possibly none
+     * @return whether the kart has just hit a wall
+     */
+    boolean step(int seq, String commands) {
+        if (inputs.size() == MAX_INPUTS)
+            inputs.poll();
+        inputs.add(new Input(seq, commands));
+        errorX *= 1 - CORRECTION_RATE;
+        errorY *= 1 - CORRECTION_RATE;
+        return simulate(commands);
+    }
+
+    /**
+     * Resets the predicted kart to the server's state and replays the inputs the server hasn't applied yet
+     *
+     * @param state      own kart's state as per the server
+     * @param ackedInput sequence number of the last input the server applied
+     */
+    void reconcile(KartState state, int ackedInput) {
+        while (!inputs.isEmpty() && inputs.peek().seq <= ackedInput)
+            inputs.poll();
+        KartState before = kart.getState();
+        kart.setState(state);
+        for (Input input : inputs) {
+            simulate(input.commands);
+        }
+        KartState after = kart.getState();
+        errorX += before.centerX - after.centerX;
+        errorY += before.centerY - after.centerY;
+        if (Math.hypot(errorX, errorY) > MAX_CORRECTION) {
+            errorX = 0;
+            errorY = 0;
+        }
+    }
+
+    /**
+     * @return own kart's state to show, i.e. the predicted state moved by what remains of the correction offset
+     */
+    KartState shown() {
+        KartState state = kart.getState();
+        return new KartState(state.centerX + (int) Math.round(errorX), state.centerY + (int) Math.round(errorY),
+                state.sizeX, state.sizeY, state.speed, state.direction, state.stuck);
+    }
+
+    /**
+     * Applies input commands and moves the kart by one step, in the same order as the server
+     *
+     * @return whether the kart has just hit a wall
+     */
+    private boolean simulate(String commands) {
+        for (int i = 0; i < commands.length(); i++) {
+            kart.apply(commands.charAt(i));
+        }
+        kart.update(dt);
+        return track.checkKartCollision(kart);
+    }
+
+    /**
+     * Input commands sent to the server
+     */
+    private static class Input {
+        private final int seq;
+        private final String commands;
+
+        private Input(int seq, String commands) {
+            this.seq = seq;
+            this.commands = commands;
+        }
+    }
+}
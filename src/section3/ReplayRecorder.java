@@ -0,0 +1,222 @@
+package section3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Records a race : the karts of a {@link Room} at every tick, appended to a journal in a memory-mapped file, so that
+ * desyncs and disputed collisions can be looked into afterwards.
+ * <p>
+ * The journal is a header followed by frames of the binary wire format, see {@link WireCodec} : a SNAPSHOT keyframe
+ * every KEYFRAME_INTERVAL ticks, and a DELTA against the previous tick for the ticks between, see {@link Snapshot}.
+ * A kart that didn't move costs nothing, one that moved 6 or 7 bytes. The keyframes allow reading from the middle
+ * of a race, and cap what a damaged frame can spoil.
+ * <p>
+ * The ticks are recorded on the room's tick thread, from the karts the requests published, never on the request path.
+ * Appending is a copy to memory : the file is mapped REGION_SIZE bytes at a time and the operating system writes the
+ * pages out in the background. Nothing is lost if the server crashes, only if the machine does. The mapped space left
+ * over is cut off when the recorder closes ; a journal that wasn't closed ends with zeros, which readers take as its end.
+ * <p>
+ * Header : [MAGIC (int)][VERSION (byte)][tick rate (int)][room number (int)][start time (long, epoch millis)]
+ */
+final class ReplayRecorder {
+
+    static final int MAGIC = 0x4B52504C; // "KRPL"
+    static final byte VERSION = 1;
+
+    /**
+     * Size of the header, in bytes
+     */
+    static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 8;
+
+    /**
+     * Ticks between two keyframes, 5 seconds at 30 ticks/s
+     */
+    static final int KEYFRAME_INTERVAL = 150;
+
+    /**
+     * Bytes of the file mapped at once
+     */
+    private static final int REGION_SIZE = 4 * 1024 * 1024;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    /**
+     * The part of the file being appended to, positioned at the end of the journal
+     */
+    private MappedByteBuffer region;
+
+    /**
+     * Position of the region in the file
+     */
+    private long regionStart;
+
+    /**
+     * Frames are encoded here, then copied to the region. Grows with the number of karts.
+     */
+    private ByteBuffer frame = WireCodec.allocateFrame(64 * Snapshot.MAX_ENTRY_SIZE);
+
+    /**
+     * The snapshot recorded last, base of the next delta, null before the first one
+     */
+    private Snapshot previous;
+
+    /**
+     * Tick of the last keyframe
+     */
+    private int keyframeTick;
+
+    private int ticks;
+
+    private boolean closed;
+
+    /**
+     * Creates a journal and writes its header
+     *
+     * @param file       the journal, which must not exist yet
+     * @param tickRate   ticks per second of the room
+     * @param roomNumber number of the room recorded
+     * @throws IOException if the file can't be created
+     */
+    ReplayRecorder(Path file, int tickRate, int roomNumber) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        region.putInt(MAGIC);
+        region.put(VERSION);
+        region.putInt(tickRate);
+        region.putInt(roomNumber);
+        region.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the journal's file
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Appends a tick. Called on the room's tick thread.
+     *
+     * @param snapshot the karts at the tick
+     * @throws IOException if the file can't be extended, e.g. the disk is full
+     */
+    synchronized void record(Snapshot snapshot) throws IOException {
+        if (closed)
+            return;
+        boolean keyframe = previous == null || snapshot.tick - keyframeTick >= KEYFRAME_INTERVAL;
+        int maxPayload = snapshot.maxEncodedSize() + (keyframe ? 0 : previous.size() * Snapshot.MAX_ENTRY_SIZE);
+        if (frame.capacity() < WireCodec.MAX_VARINT_SIZE + 1 + maxPayload)
+            frame = WireCodec.allocateFrame(2 * maxPayload);
+        if (keyframe) {
+            WireCodec.beginFrame(frame, WireCodec.SNAPSHOT);
+            snapshot.encode(frame);
+            keyframeTick = snapshot.tick;
+        } else {
+            WireCodec.beginFrame(frame, WireCodec.DELTA);
+            snapshot.encodeDelta(frame, previous);
+        }
+        WireCodec.endFrame(frame);
+        if (region.remaining() < frame.remaining()) {
+            // the next region starts where the journal ends, over the rest of this one
+            regionStart += region.position();
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, frame.remaining()));
+        }
+        region.put(frame);
+        previous = snapshot;
+        ticks++;
+    }
+
+    /**
+     * Writes the journal out and cuts off the mapped space left over. Can be called from any thread.
+     *
+     * @return size of the journal, in bytes
+     * @throws IOException if the journal can't be written out
+     */
+    synchronized long close() throws IOException {
+        if (closed)
+            return regionStart + region.position();
+        closed = true;
+        long size = regionStart + region.position();
+        try {
+            region.force();
+            channel.truncate(size); // can fail while mapped on some systems, the zeros are then left in
+        } finally {
+            channel.close();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of ticks recorded
+     */
+    synchronized int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Reads a journal, which may not have been closed
+     *
+     * @param file     the journal
+     * @param snapshot given each tick recorded, in order
+     * @throws IOException if the file can't be read or is not a journal
+     */
+    static void read(Path file, Consumer<Snapshot> snapshot) throws IOException {
+        ByteBuffer journal;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            journal = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (journal.remaining() < HEADER_SIZE || journal.getInt() != MAGIC || journal.get() != VERSION)
+            throw new IOException(file + " is not a replay journal");
+        journal.position(HEADER_SIZE);
+        Snapshot previous = null;
+        // a frame is never empty, a length of 0 is the zeroed space after a journal that wasn't closed
+        while (journal.hasRemaining() && journal.get(journal.position()) != 0) {
+            ByteBuffer frame = WireCodec.nextFrame(journal);
+            if (frame == null)
+                return; // cut short
+            byte type = frame.get();
+            if (type == WireCodec.SNAPSHOT) {
+                previous = Snapshot.decode(frame);
+            } else if (type == WireCodec.DELTA && previous != null) {
+                previous = Snapshot.decodeDelta(frame, previous);
+            } else {
+                continue; // a delta without its keyframe, or a type this version doesn't know
+            }
+            snapshot.accept(previous);
+        }
+    }
+
+    /**
+     * Prints a journal in the text format of the snapshots, one tick per line, e.g. for diffing two races.
+     * <p>
+     * Run with : java section3.ReplayRecorder &lt;journal&gt;
+     *
+     * @param args the journal
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage : java section3.ReplayRecorder <journal>");
+            System.exit(2);
+        }
+        try {
+            read(Path.of(args[0]), snapshot -> System.out.println(snapshot.encode()));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read " + args[0] + " : " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
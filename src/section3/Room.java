@@ -0,0 +1,303 @@
+package section3;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One race. The server hosts many of them at once : each room has its own karts, tick loop and encoded world, and
+ * its clients only ever see each other. Nothing is shared between rooms, so races run side by side without waiting
+ * on each other.
+ * <p>
+ * A room is opened for the first client that finds no free seat in the other rooms, and closes when its last client
+ * leaves. Its tick loop runs on one of the server's workers for all its life, see {@link ServerEngine}.
+ * Client ids are given per room, from 0, so a client sees the same ids as if the room were the whole server.
+ * <p>
+ * The replies to the clients' requests only carry the karts within the interest radius of the client's own kart
+ * every time, the other karts being sent every FAR_INTERVAL ticks. The karts near a kart are found with a
+ * {@link SpatialGrid}, so a client's bandwidth depends on how crowded its surroundings are rather than on the number
+ * of karts in the room.
+ */
+final class Room {
+
+    /**
+     * Ticks between two updates of the karts beyond the interest radius, i.e. 5 a second at 30 ticks/s
+     */
+    static final int FAR_INTERVAL = 6;
+
+    /**
+     * A client's place in a room
+     */
+    static final class Seat {
+        final Room room;
+        final int id;
+
+        private Seat(Room room, int id) {
+            this.room = room;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Index of the room in the server's rooms
+     */
+    final int number;
+
+    /**
+     * The clients of the room and their karts
+     */
+    final KartRegistry registry;
+
+    /**
+     * Simulates the karts of the clients that joined in tick mode
+     */
+    final TickLoop tickLoop;
+
+    /**
+     * Where the karts are on the track
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Karts within this distance of a client's kart are sent to it in every reply. 0 to send every kart every time.
+     */
+    private final int interestRadius;
+
+    /**
+     * Tick at which each client was last sent the karts beyond the interest radius.
+     * Only used on the thread handling the client's state requests : its connection's thread, or the room's worker
+     * once the client uses datagrams, see {@link UdpTransport}.
+     */
+    private final long[] farSentAt;
+
+    /**
+     * Scratch array of each client for the indices of the karts of its replies, see interest().
+     * Allocated when a client is first given the id, only used on the same thread as farSentAt.
+     */
+    private final int[][] replyIndices;
+
+    /**
+     * The thread the room's ticks run on, null until the room is opened
+     */
+    private volatile ScheduledExecutorService worker;
+
+    /**
+     * Number of seats taken, from the moment a client is seated until it leaves. -1 once the room is closed.
+     */
+    private final AtomicInteger seats = new AtomicInteger();
+
+    /**
+     * The world as encoded for the replies of the current tick, null until a client asks for it.
+     * Only replaced under worldLock, see {@link #retainWorld()}.
+     */
+    private volatile EncodedWorld encodedWorld;
+
+    private final ReentrantLock worldLock = new ReentrantLock();
+
+    /**
+     * Buffers of the encoded worlds. Besides the current one, only the worlds still being written are kept.
+     */
+    private final BufferPool bufferPool = new BufferPool(4);
+
+    /**
+     * @param server         the server hosting the room
+     * @param number         index of the room in the server's rooms
+     * @param size           number of seats
+     * @param tickRate       ticks per second of the room's tick loop
+     * @param interestRadius karts within this distance of a client's kart are sent in every reply, 0 for all karts
+     */
+    Room(ServerEngine server, int number, int size, int tickRate, int interestRadius) {
+        this.number = number;
+        this.interestRadius = interestRadius;
+        registry = new KartRegistry(size);
+        tickLoop = new TickLoop(server, this, tickRate);
+        grid = new SpatialGrid(size);
+        farSentAt = new long[size];
+        replyIndices = new int[size][];
+    }
+
+    /**
+     * Starts the room's tick loop
+     *
+     * @param worker   the thread the room's ticks all run on
+     * @param recorder records the race, null for none
+     */
+    void open(ScheduledExecutorService worker, ReplayRecorder recorder) {
+        this.worker = worker;
+        tickLoop.start(worker, recorder);
+    }
+
+    /**
+     * Runs a task on the room's worker, between its ticks, e.g. the handling of a client's datagram.
+     * The tasks run in the order they were given.
+     *
+     * @param task the task, which must not throw
+     * @return false if the room is not open or the server is stopping, in which case the task won't run
+     */
+    boolean execute(Runnable task) {
+        ScheduledExecutorService worker = this.worker;
+        if (worker == null)
+            return false;
+        try {
+            worker.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Seats a new client, which is given the lowest id free in the room
+     *
+     * @return the client's seat, or null if the room is full or closed
+     */
+    Seat join() {
+        int taken;
+        do {
+            taken = seats.get();
+            if (taken < 0 || taken >= registry.capacity())
+                return null;
+        } while (!seats.compareAndSet(taken, taken + 1));
+        int id = registry.reserve(); // can't fail, there are fewer clients than seats
+        farSentAt[id] = -FAR_INTERVAL; // the first reply carries every kart
+        if (replyIndices[id] == null)
+            replyIndices[id] = new int[registry.capacity()]; // kept for the next client given the id
+        return new Seat(this, id);
+    }
+
+    /**
+     * A client leaves the room, the room closes if it was the last one
+     *
+     * @param id the client's id
+     * @return whether the room closed
+     */
+    boolean leave(int id) {
+        registry.remove(id);
+        grid.remove(id);
+        invalidateWorld(); // the other clients shouldn't see the kart again
+        // a client seated meanwhile keeps the room open
+        if (seats.decrementAndGet() == 0 && seats.compareAndSet(0, -1)) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops the room's tick loop, no client can be seated anymore
+     */
+    void close() {
+        seats.set(-1);
+        tickLoop.stop();
+        invalidateWorld();
+    }
+
+    /**
+     * Publishes the latest state of a client's kart and moves it on the grid
+     */
+    void setKart(int id, KartState state) {
+        registry.setKart(id, state);
+        grid.move(id, state.centerX, state.centerY);
+    }
+
+    /**
+     * @param id a client's id
+     * @return the client's scratch array for {@link #interest(EncodedWorld, int, int[])}. Only to be used on the thread
+     * handling the client's requests.
+     */
+    int[] replyIndices(int id) {
+        return replyIndices[id];
+    }
+
+    /**
+     * Picks the karts of a reply to a client : those within the interest radius of the client's kart, and every
+     * FAR_INTERVAL ticks all the other ones too. The client's own kart is left out.
+     *
+     * @param world   the world the reply is made of
+     * @param id      the client's id
+     * @param indices receives the indices in the world of the karts picked, in increasing order, at least as long as
+     *                the room's capacity
+     * @return number of karts picked
+     */
+    int interest(EncodedWorld world, int id, int[] indices) {
+        KartState own = registry.kart(id);
+        int count = 0;
+        if (interestRadius <= 0 || own == null || world.tick - farSentAt[id] >= FAR_INTERVAL) {
+            if (interestRadius > 0)
+                farSentAt[id] = world.tick;
+            int ownIndex = world.indexOf(id);
+            for (int i = 0; i < world.size(); i++) {
+                if (i != ownIndex)
+                    indices[count++] = i;
+            }
+            return count;
+        }
+        long radius2 = (long) interestRadius * interestRadius;
+        int found = grid.near(own.centerX, own.centerY, interestRadius, indices);
+        for (int i = 0; i < found; i++) {
+            int other = indices[i];
+            int index = other == id ? -1 : world.indexOf(other);
+            if (index < 0)
+                continue; // not in the world encoded at the start of the tick
+            KartState state = world.state(index);
+            long dx = state.centerX - own.centerX, dy = state.centerY - own.centerY;
+            if (dx * dx + dy * dy <= radius2)
+                indices[count++] = index;
+        }
+        Arrays.sort(indices, 0, count);
+        int unique = 0; // a kart crossing a cell border may have been found twice
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || indices[unique - 1] != indices[i])
+                indices[unique++] = indices[i];
+        }
+        return unique;
+    }
+
+    /**
+     * The world is encoded by the first request of each tick, every other request of the tick shares it.
+     *
+     * @return the world encoded for the current tick, retained : it must be released once the reply is written
+     */
+    EncodedWorld retainWorld() {
+        while (true) {
+            EncodedWorld world = encodedWorld;
+            long tick = tickLoop.getTick();
+            if (world == null || world.tick < tick) {
+                worldLock.lock();
+                try {
+                    world = encodedWorld;
+                    if (world == null || world.tick < tick) {
+                        EncodedWorld previous = world;
+                        world = EncodedWorld.encode(tick, registry, bufferPool);
+                        encodedWorld = world;
+                        if (previous != null)
+                            previous.release();
+                    }
+                } finally {
+                    worldLock.unlock();
+                }
+            }
+            if (world.retain())
+                return world;
+            // released meanwhile by the next tick's request or by a client leaving, encode again
+        }
+    }
+
+    /**
+     * Drops the encoded world, so that the next request encodes it again
+     */
+    private void invalidateWorld() {
+        EncodedWorld previous;
+        worldLock.lock();
+        try {
+            previous = encodedWorld;
+            encodedWorld = null;
+        } finally {
+            worldLock.unlock();
+        }
+        if (previous != null)
+            previous.release();
+    }
+}
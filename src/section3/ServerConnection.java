@@ -0,0 +1,665 @@
+package section3;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side of the connection to the server, in any of the protocols (text or binary, over TCP alone or with
+ * datagrams, with or without tick mode).
+ * <p>
+ * After {@link #connect(String, int, boolean, boolean)}, the connection does all its I/O on its own threads :
+ * messages are queued to a sending thread, and receiving threads publish every update as a new {@link WorldState}.
+ * The game loop only queues messages and reads the latest world state, so a slow or silent server never stalls it.
+ */
+class ServerConnection {
+
+    /**
+     * Told about events from the server. Called on the connection's threads.
+     */
+    interface Listener {
+
+        /**
+         * @param clientId id of the other client that left the game
+         */
+        void clientLeft(String clientId);
+
+        /**
+         * @param message a message to log as it is
+         */
+        void log(String message);
+
+        /**
+         * The reply to a state sent over TCP started arriving
+         *
+         * @param latency nanoseconds since the state was sent
+         */
+        default void stateReplied(long latency) {
+        }
+
+        /**
+         * A snapshot acknowledging a newer input arrived, in tick mode
+         *
+         * @param latency nanoseconds since the input was sent
+         */
+        default void inputAcknowledged(long latency) {
+        }
+
+        /**
+         * A line or frame from the server was decoded and applied, on the thread receiving it
+         *
+         * @param nanos time it took
+         */
+        default void decoded(long nanos) {
+        }
+    }
+
+    /**
+     * Milliseconds to wait for the server to accept the binary format or the datagram transport
+     */
+    private static final int NEGOTIATION_TIMEOUT = 2000;
+
+    /**
+     * Number of received snapshots kept as bases for deltas
+     */
+    private static final int SNAPSHOT_HISTORY = 64;
+
+    /**
+     * Maximum number of unacknowledged inputs kept for repeating, older ones are given up
+     */
+    private static final int MAX_SENT_INPUTS = 32;
+
+    private final Listener listener;
+
+    /**
+     * ID given by the server
+     */
+    private int id;
+
+    /**
+     * Nanoseconds between two ticks of the server, 0 if unknown
+     */
+    private long tickPeriod;
+
+    private Socket socket;
+
+    //Socket IO
+    private BufferedReader in;
+    private PrintWriter out;
+
+    //Socket IO once the binary format is negotiated, see WireCodec. binaryIn is null when the text protocol is used
+    private DataInputStream binaryIn;
+    private OutputStream binaryOut;
+
+    /**
+     * Datagram transport for state traffic, null if not used
+     */
+    private UdpClient udpClient;
+
+    /**
+     * Runs every send, in order. Only its thread touches the sendBuffer and sentInputs.
+     */
+    private ExecutorService sender;
+
+    /**
+     * Frames sent to the server are built in this buffer
+     */
+    private ByteBuffer sendBuffer = WireCodec.allocateFrame(WireCodec.MAX_VARINT_SIZE + KartState.BINARY_SIZE);
+
+    /**
+     * Inputs sent but not yet acknowledged by the server, oldest first.
+     * Over the datagram transport, every input is repeated until the server acknowledges it.
+     */
+    private final ArrayDeque<SentInput> sentInputs = new ArrayDeque<>();
+
+    /**
+     * When the last inputs were sent, in System.nanoTime(), indexed by seq % MAX_SENT_INPUTS
+     */
+    private final AtomicLongArray inputSentAt = new AtomicLongArray(MAX_SENT_INPUTS);
+
+    /**
+     * Sequence number of the last input sent
+     */
+    private volatile int lastInputSent;
+
+    /**
+     * Sequence number of the last input acknowledged by a snapshot. Guarded by the snapshotLock.
+     */
+    private int lastInputAcknowledged;
+
+    /**
+     * The latest world state received, replaced as a whole on every update
+     */
+    private final AtomicReference<WorldState> world = new AtomicReference<>(WorldState.EMPTY);
+
+    /**
+     * Whether a state was sent over TCP and its reply hasn't arrived yet.
+     * Only one such request is in flight at a time, so a slow server doesn't pile up requests.
+     */
+    private final AtomicBoolean awaitingReply = new AtomicBoolean();
+
+    /**
+     * When the state awaiting its reply was sent, in System.nanoTime()
+     */
+    private volatile long stateSentAt;
+
+    /**
+     * Kart lines of the text reply being received still to be read, only used on the receiving thread
+     */
+    private int pendingKarts;
+
+    /**
+     * Guards the snapshot history, since snapshots arrive both over TCP and in datagrams
+     */
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    /**
+     * The last snapshots received, indexed by tick % SNAPSHOT_HISTORY.
+     * The server may send a snapshot as a delta against any snapshot this client acknowledged.
+     */
+    private final Snapshot[] snapshots = new Snapshot[SNAPSHOT_HISTORY];
+
+    /**
+     * Tick of the latest snapshot received, acknowledged to the server with each input
+     */
+    private volatile int snapshotTick;
+
+    private volatile boolean open;
+
+    /**
+     * @param listener told about events from the server
+     */
+    ServerConnection(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Connects to the server, negotiates the format and transport, and starts the connection's threads.
+     * Blocks until the negotiation is over.
+     *
+     * @param host   the server
+     * @param port   the server's port
+     * @param binary whether to ask for the binary format
+     * @param udp    whether to ask for the datagram transport. Implies the binary format.
+     * @param ticks  whether to ask for the tick rate, for the tick mode, see {@link #getTickPeriod()}
+     * @throws IOException if the connection fails
+     */
+    void connect(String host, int port, boolean binary, boolean udp, boolean ticks) throws IOException {
+        socket = new Socket(host, port);
+        out = new PrintWriter(socket.getOutputStream());
+        // read without reading ahead, the rest of the stream may turn out to be binary
+        id = Integer.parseInt(WireCodec.readLine(socket.getInputStream()).trim());
+
+        listener.log("Connected to Server.\nIdentification received : " + id + '\n');
+        if (ticks)
+            negotiateTickRate();
+        String udpReply = udp ? negotiate(UdpTransport.NEGOTIATION, UdpTransport.NEGOTIATION + "#") : null;
+        if (binary || udpReply != null)
+            negotiateBinary();
+        if (binaryIn == null) {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        } else if (udpReply != null) {
+            int token = Integer.parseInt(udpReply.substring(UdpTransport.NEGOTIATION.length() + 1).trim());
+            udpClient = new UdpClient(new InetSocketAddress(host, port), token);
+            listener.log("Using the datagram transport\n");
+        }
+
+        open = true;
+        sender = Executors.newSingleThreadExecutor(r -> new Thread(r, "net-send"));
+        new Thread(this::receiveLoop, "net-receive").start();
+        if (udpClient != null)
+            new Thread(this::receiveDatagrams, "net-receive-udp").start();
+    }
+
+    /**
+     * Asks the server for the binary format. Falls back to the text protocol if the server doesn't accept it.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void negotiateBinary() throws IOException {
+        if (negotiate(WireCodec.NEGOTIATION, WireCodec.NEGOTIATION) == null) {
+            listener.log("The server doesn't support the binary format\n");
+            return;
+        }
+        binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        binaryOut = new BufferedOutputStream(socket.getOutputStream());
+        listener.log("Switched to the binary format\n");
+    }
+
+    /**
+     * Asks the server for its tick rate. Snapshots are left unstamped if the server doesn't tell it.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void negotiateTickRate() throws IOException {
+        String reply = negotiate(TickLoop.NEGOTIATION, TickLoop.NEGOTIATION + "#");
+        if (reply == null)
+            return;
+        try {
+            int tickRate = Integer.parseInt(reply.substring(TickLoop.NEGOTIATION.length() + 1));
+            if (tickRate > 0)
+                tickPeriod = TimeUnit.SECONDS.toNanos(1) / tickRate;
+        } catch (NumberFormatException e) {
+            listener.log("Invalid tick rate from the server : " + reply + '\n');
+        }
+    }
+
+    /**
+     * Sends a negotiation line and waits for the server's reply.
+     * Older servers silently ignore such lines, so the reply is only waited for NEGOTIATION_TIMEOUT.
+     * Lines are read without reading ahead, since the rest of the stream may be binary.
+     *
+     * @param request     the negotiation line
+     * @param replyPrefix how the reply starts
+     * @return the reply, or null if the server didn't reply in time
+     * @throws IOException if the connection fails
+     */
+    private String negotiate(String request, String replyPrefix) throws IOException {
+        out.println(request);
+        out.flush();
+        socket.setSoTimeout(NEGOTIATION_TIMEOUT);
+        try {
+            String line;
+            while ((line = WireCodec.readLine(socket.getInputStream())) != null) {
+                if (line.trim().startsWith(replyPrefix))
+                    return line.trim();
+                if (line.startsWith("P0"))
+                    listener.clientLeft(line.substring(3));
+            }
+        } catch (SocketTimeoutException e) {
+            // no reply
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return null;
+    }
+
+    /**
+     * @return the ID given by the server
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * @return nanoseconds between two ticks of the server, so that snapshot n was sent n periods after tick 0,
+     * or 0 if the tick rate wasn't asked for or the server didn't tell it
+     */
+    long getTickPeriod() {
+        return tickPeriod;
+    }
+
+    /**
+     * @return whether the binary format is used
+     */
+    boolean isBinary() {
+        return binaryIn != null;
+    }
+
+    /**
+     * @return whether the datagram transport is used
+     */
+    boolean isUdp() {
+        return udpClient != null;
+    }
+
+    /**
+     * @return the latest world state received. Never blocks.
+     */
+    WorldState getWorld() {
+        return world.get();
+    }
+
+    /**
+     * Joins the tick mode, from then on the server simulates own kart and pushes snapshots
+     *
+     * @param state own kart's initial state
+     */
+    void join(KartState state) {
+        send(() -> {
+            if (binaryIn != null) {
+                writeKartFrame(WireCodec.JOIN, state);
+            } else {
+                out.println("P2#" + state.encode());
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Sends own kart's state and requests the other karts' states, whose reply updates the world state.
+     * Over TCP, the state is not sent while the reply to the previous one is still on its way.
+     * Over datagrams, it is always sent, since replies may be lost.
+     *
+     * @param state own kart's state
+     * @return false if the state wasn't sent, the reply to the previous one being still on its way
+     */
+    boolean sendState(KartState state) {
+        if (udpClient == null) {
+            if (!awaitingReply.compareAndSet(false, true))
+                return false;
+            stateSentAt = System.nanoTime();
+        }
+        send(() -> {
+            if (udpClient != null) {
+                WireCodec.beginFrame(sendBuffer, WireCodec.STATE);
+                state.encode(sendBuffer);
+                udpClient.add(WireCodec.endFrame(sendBuffer));
+                udpClient.send();
+            } else if (binaryIn != null) {
+                writeKartFrame(WireCodec.STATE, state);
+            } else {
+                out.println("P1#" + state.encode());
+                out.flush();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sends input commands to the server. Only used in tick mode.
+     *
+     * @param seq      sequence number of the input
+     * @param commands the input commands, possibly none
+     */
+    void sendInput(int seq, String commands) {
+        inputSentAt.set(seq % MAX_SENT_INPUTS, System.nanoTime());
+        lastInputSent = seq;
+        send(() -> {
+            if (udpClient != null) {
+                int ackedInput = world.get().ackedInput;
+                sentInputs.add(new SentInput(seq, commands));
+                while (sentInputs.size() > MAX_SENT_INPUTS || (!sentInputs.isEmpty() && sentInputs.peek().seq <= ackedInput))
+                    sentInputs.poll();
+                // oldest first, the server ignores inputs older than the last one it queued
+                for (SentInput input : sentInputs) {
+                    if (!udpClient.add(inputFrame(input.seq, input.commands)))
+                        break;
+                }
+                udpClient.send();
+            } else if (binaryIn != null) {
+                WireCodec.writeFrame(binaryOut, inputFrame(seq, commands));
+            } else {
+                out.println("P3#" + seq + "#" + commands);
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Tells the server this client leaves, then closes the connection
+     *
+     * @param state own kart's last state
+     */
+    void disconnect(KartState state) {
+        send(() -> {
+            open = false; // the server may close the connection as soon as it reads the leave
+            if (binaryIn != null) {
+                writeKartFrame(WireCodec.LEAVE, state);
+            } else {
+                out.println("P0#" + state.encode());
+                out.flush();
+            }
+            socket.close();//actually disconnect from the server
+            if (udpClient != null)
+                udpClient.close();
+        });
+        sender.shutdown();
+    }
+
+    /**
+     * Queues a send to the sending thread
+     */
+    private void send(Send send) {
+        try {
+            sender.execute(() -> {
+                try {
+                    send.run();
+                } catch (IOException e) {
+                    if (open)
+                        e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already disconnected
+        }
+    }
+
+    /**
+     * Sends a kart's state in a frame of the given type
+     *
+     * @param type  message type, see {@link WireCodec}
+     * @param state the kart's state
+     * @throws IOException if the connection fails
+     */
+    private void writeKartFrame(byte type, KartState state) throws IOException {
+        WireCodec.beginFrame(sendBuffer, type);
+        state.encode(sendBuffer);
+        WireCodec.writeFrame(binaryOut, WireCodec.endFrame(sendBuffer));
+    }
+
+    /**
+     * Builds an INPUT frame in the sendBuffer
+     *
+     * @param seq      sequence number of the input
+     * @param commands the input commands
+     * @return the frame
+     */
+    private ByteBuffer inputFrame(int seq, String commands) {
+        int maxPayload = 3 * WireCodec.MAX_VARINT_SIZE + commands.length();
+        if (sendBuffer.capacity() < WireCodec.MAX_VARINT_SIZE + 1 + maxPayload)
+            sendBuffer = WireCodec.allocateFrame(maxPayload);
+        WireCodec.beginFrame(sendBuffer, WireCodec.INPUT);
+        WireCodec.writeVarInt(sendBuffer, seq);
+        WireCodec.writeVarInt(sendBuffer, snapshotTick);
+        WireCodec.writeVarInt(sendBuffer, commands.length());
+        for (int i = 0; i < commands.length(); i++) {
+            sendBuffer.put((byte) commands.charAt(i));
+        }
+        return WireCodec.endFrame(sendBuffer);
+    }
+
+    /**
+     * Reads everything the server sends over TCP until the connection closes
+     */
+    private void receiveLoop() {
+        try {
+            if (binaryIn != null) {
+                while (open) {
+                    ByteBuffer frame = WireCodec.readFrame(binaryIn);
+                    try {
+                        long start = System.nanoTime();
+                        receiveFrame(frame);
+                        listener.decoded(System.nanoTime() - start);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(); // a malformed frame, the next one is still readable
+                    }
+                }
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    long start = System.nanoTime();
+                    receiveLine(line.trim());
+                    listener.decoded(System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            listener.log("The server closed the connection\n"); // as readFrame's EOFException on the binary path
+        } catch (EOFException e) {
+            listener.log("The server closed the connection\n");
+        } catch (IOException e) {
+            if (open)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the datagrams the server sends until the channel is closed
+     */
+    private void receiveDatagrams() {
+        while (true) {
+            try {
+                ByteBuffer datagram = udpClient.receive();
+                ByteBuffer frame;
+                while ((frame = WireCodec.nextFrame(datagram)) != null) {
+                    long start = System.nanoTime();
+                    receiveFrame(frame);
+                    listener.decoded(System.nanoTime() - start);
+                }
+            } catch (ClosedChannelException e) {
+                return; // disconnected
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Handles one line of the text protocol
+     */
+    private void receiveLine(String line) {
+        if (line.startsWith("P0")) {
+            listener.clientLeft(line.substring(3));
+        } else if (line.startsWith("P4")) {
+            receiveSnapshot(Snapshot.decode(line));
+        } else if (line.indexOf('?') > 0) {
+            // a kart of the reply to P1, in the form - <Client Index>?<Client's kart data>
+            // only the karts the server has are listed. The reply is complete with the last one, even if it fails.
+            boolean last = pendingKarts > 0 && --pendingKarts == 0;
+            try {
+                int idx = Integer.parseInt(line.substring(0, line.indexOf('?')));
+                KartState state = KartState.decode(line.substring(line.indexOf('?') + 1));
+                world.updateAndGet(w -> w.with(new int[]{idx}, new KartState[]{state}, 1));
+            } finally {
+                if (last)
+                    replied();
+            }
+        } else if (!line.isEmpty()) {
+            // the reply to P1 starts with the number of other karts, then each of them follows on its own line
+            listener.log("number of other karts = " + line + "\n");
+            pendingKarts = Integer.parseInt(line);
+            if (pendingKarts <= 0)
+                replied();
+        }
+    }
+
+    /**
+     * Handles one frame of the binary format
+     *
+     * @param frame the frame's type and payload
+     */
+    private void receiveFrame(ByteBuffer frame) {
+        byte type = frame.get();
+        if (type == WireCodec.LEAVE) {
+            listener.clientLeft(WireCodec.readVarInt(frame) + "");
+        } else if (type == WireCodec.STATE) {
+            // the reply holds the number of other karts followed by each kart's id and data.
+            int numKarts = WireCodec.readVarInt(frame);
+            int[] ids = new int[numKarts];
+            KartState[] states = new KartState[numKarts];
+            for (int i = 0; i < numKarts; i++) {
+                ids[i] = WireCodec.readVarInt(frame);
+                states[i] = KartState.decode(frame);
+            }
+            world.updateAndGet(w -> w.with(ids, states, numKarts));
+            replied();
+        } else if (type == WireCodec.SNAPSHOT) {
+            receiveSnapshot(Snapshot.decode(frame));
+        } else if (type == WireCodec.DELTA) {
+            snapshotLock.lock();
+            try {
+                receiveSnapshot(decodeDelta(frame));
+            } finally {
+                snapshotLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The reply to the state sent arrived, the next state can be sent
+     */
+    private void replied() {
+        if (udpClient != null)
+            return; // states sent in datagrams don't wait for their replies
+        listener.stateReplied(System.nanoTime() - stateSentAt);
+        awaitingReply.set(false);
+    }
+
+    /**
+     * Decodes a delta against a snapshot received earlier. Called with the snapshotLock held.
+     *
+     * @param frame the delta's payload, positioned after the message type
+     * @return the snapshot, or null if the base snapshot is no longer known
+     */
+    private Snapshot decodeDelta(ByteBuffer frame) {
+        ByteBuffer header = frame.duplicate();
+        WireCodec.readVarInt(header); // tick
+        int baseTick = WireCodec.readVarInt(header);
+        Snapshot base = snapshots[baseTick % SNAPSHOT_HISTORY];
+        if (base == null || base.tick != baseTick) {
+            listener.log("Dropped a delta against unknown snapshot " + baseTick + "\n");
+            return null;
+        }
+        return Snapshot.decodeDelta(frame, base);
+    }
+
+    /**
+     * Keeps a snapshot as a base for later deltas and publishes it, unless a newer one has been received already
+     *
+     * @param snapshot the snapshot, may be null
+     */
+    private void receiveSnapshot(Snapshot snapshot) {
+        if (snapshot == null)
+            return;
+        snapshotLock.lock();
+        try {
+            if (snapshot.tick <= snapshotTick)
+                return;
+            snapshots[snapshot.tick % SNAPSHOT_HISTORY] = snapshot;
+            snapshotTick = snapshot.tick;
+            int ackedInput = world.updateAndGet(w -> w.with(snapshot, id)).ackedInput;
+            if (ackedInput > lastInputAcknowledged) {
+                lastInputAcknowledged = ackedInput;
+                if (lastInputSent - ackedInput < MAX_SENT_INPUTS)
+                    listener.inputAcknowledged(System.nanoTime() - inputSentAt.get(ackedInput % MAX_SENT_INPUTS));
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * A send run on the sending thread
+     */
+    private interface Send {
+        void run() throws IOException;
+    }
+
+    /**
+     * An input sent to the server, kept until the server acknowledges it
+     */
+    private static class SentInput {
+        private final int seq;
+        private final String commands;
+
+        private SentInput(int seq, String commands) {
+            this.seq = seq;
+            this.commands = commands;
+        }
+    }
+}
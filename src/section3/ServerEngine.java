@@ -0,0 +1,1009 @@
+package section3;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The game server itself, without any GUI : it accepts clients, seats them in rooms and handles their requests.
+ * <p>
+ * Each {@link Room} is a race of its own. A new client is seated in the first room with a free seat, and a new room
+ * is opened when they are all full. The rooms' tick loops are pinned to a fixed pool of single thread workers, one
+ * per core, so that many small races run in parallel on one server.
+ * <p>
+ * It is controlled through {@link #start(int, Mode, int)}, {@link #stop()} and {@link #getStats()}, either by the
+ * {@link GameServer} window or from the command line, see {@link #main(String[])}.
+ */
+public class ServerEngine {
+
+    static final int DEFAULT_PORT = 12345;
+
+    /**
+     * Default number of ticks per second of the server side game loop
+     */
+    static final int DEFAULT_TICK_RATE = 30;
+
+    /**
+     * Default maximum number of clients connected at the same time
+     */
+    static final int DEFAULT_MAX_CLIENTS = 1024;
+
+    /**
+     * Default number of seats of each room
+     */
+    static final int DEFAULT_ROOM_SIZE = 8;
+
+    /**
+     * Default distance, in track coordinates, within which karts are sent to a client in every reply, see {@link Room}
+     */
+    static final int DEFAULT_INTEREST_RADIUS = 250;
+
+    /**
+     * Size of the buffer each ClientHandler gathers a reply in before writing it to the socket
+     */
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * How client sockets are serviced
+     */
+    enum Mode {
+        /**
+         * Each client is handled by its own ClientHandler on a platform thread
+         */
+        THREADS("Thread per client"),
+
+        /**
+         * Each client is handled by its own ClientHandler on a virtual thread, see {@link VirtualThreads}
+         */
+        VIRTUAL("Virtual threads"),
+
+        /**
+         * Clients are multiplexed over a few event loops, see {@link NioServer}
+         */
+        NIO("NIO");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Told about what the server can't just log, e.g. by the GUI
+     */
+    interface Listener {
+
+        /**
+         * @param message an error, already logged
+         */
+        void error(String message);
+
+        /**
+         * The server stopped by itself, since the last client left and finalize is set
+         */
+        void stopped();
+    }
+
+    /**
+     * The open rooms, by room number. Enough of them for maxClients clients.
+     */
+    final AtomicReferenceArray<Room> rooms;
+
+    /**
+     * Number of seats of each room
+     */
+    private final int roomSize;
+
+    /**
+     * Taken to open a room, never to seat a client in an open one
+     */
+    private final ReentrantLock roomLock = new ReentrantLock();
+
+    /**
+     * The threads the rooms' tick loops run on, room n being pinned to worker n % workers.length
+     */
+    private ScheduledExecutorService[] workers;
+
+    /**
+     * Ticks per second of the rooms' tick loops
+     */
+    private int tickRate;
+
+    /**
+     * Interest radius of the rooms opened from now on, 0 to send every kart in every reply
+     */
+    private volatile int interestRadius = DEFAULT_INTEREST_RADIUS;
+
+    /**
+     * Where the races of the rooms opened from now on are recorded, null to not record them
+     */
+    private volatile Path replayDirectory;
+
+    /**
+     * The server activity is logged here
+     */
+    final ServerLog serverLog;
+
+    /**
+     * What the server does, counted for JMX and the metrics endpoint
+     */
+    final ServerMetrics metrics = new ServerMetrics(this);
+
+    private final Listener listener;
+
+    /**
+     * Port on which the server is listening
+     */
+    private int serverPort;
+
+    private Mode mode;
+
+    /**
+     * whether the server should be finalized when the last client disconnects
+     */
+    private volatile boolean finalize;
+
+    /**
+     * Server socket to listen for client sockets.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Non-blocking server, used instead of serverSocket when the NIO mode is chosen.
+     */
+    private NioServer nioServer;
+
+    /**
+     * Datagram transport for state traffic, null if the port couldn't be bound
+     */
+    private volatile UdpTransport udpTransport;
+
+    /**
+     * Number of clients that connected since the server started
+     */
+    private final AtomicLong connections = new AtomicLong();
+
+    /**
+     * When the server started, in System.currentTimeMillis() units
+     */
+    private long startTime;
+
+    /**
+     * is the server running?
+     */
+    volatile boolean running;
+
+    /**
+     * @param serverLog  where the server activity is logged
+     * @param maxClients maximum number of clients connected at the same time, further ones are refused
+     * @param roomSize   number of seats of each room
+     * @param listener   told about errors and the server stopping by itself
+     */
+    ServerEngine(ServerLog serverLog, int maxClients, int roomSize, Listener listener) {
+        this.serverLog = serverLog;
+        this.listener = listener;
+        this.roomSize = roomSize;
+        rooms = new AtomicReferenceArray<>((maxClients + roomSize - 1) / roomSize);
+    }
+
+    /**
+     * Starts listening on the given port, along with the rooms' workers and the datagram transport.
+     *
+     * @param port     port to listen on
+     * @param mode     how client sockets are serviced
+     * @param tickRate number of ticks per second of the rooms' tick loops
+     * @throws IOException if the port can't be listened on
+     */
+    synchronized void start(int port, Mode mode, int tickRate) throws IOException {
+        if (running)
+            throw new IllegalStateException("The server is already running");
+        serverPort = port;
+        this.mode = mode;
+        this.tickRate = tickRate;
+        workers = new ScheduledExecutorService[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < workers.length; i++) {
+            String name = "room-worker-" + i;
+            workers[i] = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, name));
+        }
+        if (mode == Mode.NIO) {
+            nioServer = new NioServer(this, serverPort, Runtime.getRuntime().availableProcessors());
+            running = true;
+            nioServer.start();
+        } else {
+            serverSocket = new ServerSocket(serverPort);
+            ThreadFactory threadFactory = threadFactory(mode);
+            running = true;
+            threadFactory.newThread(() -> {
+                //Listen for new connections while the server is running.
+                while (running) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        ClientHandler clientHandler = new ClientHandler(socket);
+                        metrics.acceptQueued();
+                        clientConnected(clientHandler);
+                        threadFactory.newThread(clientHandler).start();
+                    } catch (Exception e) {
+                        if (running)
+                            error(e.getMessage());
+                    }
+                }
+            }).start();
+        }
+
+        try {
+            udpTransport = new UdpTransport(this, serverPort);
+            udpTransport.start();
+        } catch (Exception e) {
+            udpTransport = null;
+            log("Datagram transport not available : " + e.getMessage());
+        }
+        startTime = System.currentTimeMillis();
+        connections.set(0);
+        metrics.register(serverPort);
+        log("Listening on Port : " + serverPort + " (" + mode + ", " + tickRate + " ticks/s, rooms of " + roomSize
+                + ", " + workers.length + " workers)");
+    }
+
+    /**
+     * @return factory for the accept thread and the client threads, as per the chosen mode
+     */
+    private ThreadFactory threadFactory(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            if (VirtualThreads.isSupported())
+                return VirtualThreads.factory();
+            log("Virtual threads are not supported by this JVM, using platform threads.");
+        }
+        return Thread::new;
+    }
+
+    /**
+     * Disconnects all the clients and stops listening.
+     */
+    synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        for (int number = 0; number < rooms.length(); number++) {
+            Room room = rooms.getAndSet(number, null);
+            if (room == null)
+                continue;
+            for (int id = 0; id < room.registry.limit(); id++) {
+                ClientConnection client = room.registry.client(id);
+                if (client != null) {
+                    log("Disconnecting Player : " + id + " of room " + number);
+                    client.close();
+                }
+            }
+            room.close();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        } else {
+            try {
+                serverSocket.close();
+            } catch (Exception e) {
+                error("Failed to close the Server : " + e.getMessage());
+            }
+        }
+        for (ScheduledExecutorService worker : workers) {
+            worker.shutdownNow();
+        }
+        if (udpTransport != null) {
+            udpTransport.stop();
+            udpTransport = null;
+        }
+        metrics.unregister();
+        log("Server closed.");
+    }
+
+    /**
+     * @return whether the server is running
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @param finalize whether the server should stop when the last client disconnects, i.e. the last room closes
+     */
+    void setFinalize(boolean finalize) {
+        this.finalize = finalize;
+    }
+
+    /**
+     * @param interestRadius karts within this distance of a client's kart are sent to it in every reply, the other
+     *                       ones less often, see {@link Room}. 0 to send every kart in every reply.
+     *                       Applies to the rooms opened from now on.
+     */
+    void setInterestRadius(int interestRadius) {
+        this.interestRadius = interestRadius;
+    }
+
+    /**
+     * @param replayDirectory directory where the races are recorded, one journal per room, see {@link ReplayRecorder}.
+     *                        null to not record them. Applies to the rooms opened from now on.
+     */
+    void setReplayDirectory(Path replayDirectory) {
+        this.replayDirectory = replayDirectory;
+    }
+
+    /**
+     * @return the server's current figures
+     */
+    Stats getStats() {
+        int nRooms = 0, clients = 0, karts = 0;
+        for (int number = 0; number < rooms.length(); number++) {
+            Room room = rooms.get(number);
+            if (room != null) {
+                nRooms++;
+                clients += room.registry.size();
+                karts += room.registry.kartCount();
+            }
+        }
+        return new Stats(running, serverPort, mode, running ? System.currentTimeMillis() - startTime : 0,
+                nRooms, clients, connections.get(), karts, serverLog.getDropped());
+    }
+
+    /**
+     * Logs a given message at the INFO level, see {@link ServerLog}.
+     * The message only goes in a ring here, client threads never wait on a monitor.
+     *
+     * @param message
+     */
+    void log(String message) {
+        serverLog.info(message);
+    }
+
+    /**
+     * Logs an error and tells the listener, e.g. to show it in a dialog.
+     *
+     * @param errorMessage the error
+     */
+    void error(String errorMessage) {
+        serverLog.error(errorMessage);
+        listener.error(errorMessage);
+    }
+
+    /**
+     * Seats a newly connected client in the first room with a free seat, opening a room if they are all full.
+     *
+     * @return the client's room and id, the lowest one free in the room. Client ids start from 0 in each room.
+     * @throws IOException if every room is full
+     */
+    Room.Seat joinRoom() throws IOException {
+        Room.Seat seat = findSeat();
+        if (seat != null)
+            return seat;
+        roomLock.lock();
+        try {
+            seat = findSeat(); // a room may have been opened meanwhile
+            if (seat != null)
+                return seat;
+            for (int number = 0; number < rooms.length(); number++) {
+                if (rooms.get(number) == null) {
+                    Room room = new Room(this, number, roomSize, tickRate, interestRadius);
+                    room.open(workers[number % workers.length], openRecorder(number));
+                    seat = room.join();
+                    rooms.set(number, room);
+                    log("Room " + number + " opened");
+                    return seat;
+                }
+            }
+        } finally {
+            roomLock.unlock();
+        }
+        throw new IOException("The server is full, " + rooms.length() * roomSize + " clients are connected");
+    }
+
+    /**
+     * @return a recorder for a room opening, null if races are not recorded or the journal can't be created
+     */
+    private ReplayRecorder openRecorder(int roomNumber) {
+        Path directory = replayDirectory;
+        if (directory == null)
+            return null;
+        Path file = directory.resolve("room-" + roomNumber + "-" + System.currentTimeMillis() + ".replay");
+        try {
+            ReplayRecorder recorder = new ReplayRecorder(file, tickRate, roomNumber);
+            log("Recording room " + roomNumber + " in " + file);
+            return recorder;
+        } catch (IOException e) {
+            error("Failed to record room " + roomNumber + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return a seat in the first open room with one free, or null
+     */
+    private Room.Seat findSeat() {
+        for (int number = 0; number < rooms.length(); number++) {
+            Room room = rooms.get(number);
+            Room.Seat seat = room == null ? null : room.join();
+            if (seat != null)
+                return seat;
+        }
+        return null;
+    }
+
+    /**
+     * Registers a newly connected client, so that it can see and be seen by the other clients of its room.
+     *
+     * @param client the new client, seated by joinRoom()
+     */
+    void clientConnected(ClientConnection client) {
+        Room room = client.getRoom();
+        log("New Client Connected. Identification : " + client.getClientId() + " in room " + room.number);
+        room.registry.add(client.getClientId(), client);
+        connections.incrementAndGet();
+    }
+
+    /**
+     * Called once a client has stopped. If it was the last client of its room, the room closes,
+     * and if it was the last room and finalize is true, the server stops.
+     *
+     * @param client the client that left
+     */
+    void clientLeft(ClientConnection client) {
+        Room room = client.getRoom();
+        log("Client " + client.getClientId() + " left the game in room " + room.number);
+        room.tickLoop.leave(client);
+        if (udpTransport != null)
+            udpTransport.unregister(client);
+
+        if (!room.leave(client.getClientId()))
+            return;
+        if (!rooms.compareAndSet(room.number, room, null))
+            return; // already removed by stop()
+        log("Room " + room.number + " closed");
+        for (int number = 0; number < rooms.length(); number++) {
+            if (rooms.get(number) != null)
+                return;
+        }
+        if (finalize) {
+            log("Last client closed.");
+            stop();
+            listener.stopped();
+        }
+    }
+
+    /**
+     * Handles a client request as per the protocols described in the assignment document,
+     * and the tick mode protocol described in {@link TickLoop}.
+     * Requests from every client, whichever mode services its socket, end up here.
+     *
+     * @param client  the client that sent the request
+     * @param request the client request
+     */
+    void handleClientRequest(ClientConnection client, String request) {
+        int id = client.getClientId();
+        Room room = client.getRoom();
+        if (request == null) {
+            log("Client " + id + " closed");
+            return;
+        }
+        long start = System.nanoTime();
+        // requests arrive every frame from every client, only a sample of them is logged
+        boolean sampled = serverLog.sample(ServerLog.Level.DEBUG);
+        if (sampled)
+            serverLog.debug("Request from " + id + " : " + request);
+        StringTokenizer st = new StringTokenizer(request.trim(), "#");
+
+        String protocol = st.nextToken();
+
+        if (protocol.equals("P0")) {
+            leave(client);
+        } else if (protocol.equals("P1")) {
+            String data = st.nextToken();
+            room.setKart(id, KartState.decode(data.trim()));
+            // the count and the karts' lines are written at once, from the world encoded for this tick
+            EncodedWorld world = room.retainWorld();
+            try {
+                int[] indices = room.replyIndices(id);
+                int numKarts = room.interest(world, id, indices);
+                if (sampled) {
+                    serverLog.debug("Kart Data received from : " + id);
+                    serverLog.debug("Number of karts '" + numKarts + "' sent to client " + id);
+                }
+                client.send(world.textReply(indices, numKarts));
+            } finally {
+                world.release();
+            }
+
+        } else if (protocol.equals("P2")) {
+            join(client, KartState.decode(st.nextToken().trim()));
+        } else if (protocol.equals("P3")) {
+            int seq = Integer.parseInt(st.nextToken());
+            room.tickLoop.input(client, seq, 0, st.hasMoreTokens() ? st.nextToken().trim() : "");
+        } else if (request.trim().equals(UdpTransport.NEGOTIATION)) {
+            if (udpTransport != null) {
+                client.send(UdpTransport.NEGOTIATION + "#" + udpTransport.register(client));
+                log("Client " + id + " set up the datagram transport");
+            }
+        } else if (request.trim().equals(TickLoop.NEGOTIATION)) {
+            client.send(TickLoop.NEGOTIATION + "#" + room.tickLoop.getTickRate());
+        } else if (request.trim().equals(WireCodec.NEGOTIATION)) {
+            client.startBinary();
+            log("Client " + id + " switched to the binary format");
+        }
+        metrics.requestHandled(System.nanoTime() - start);
+    }
+
+    /**
+     * Handles a client request in the binary format, see {@link WireCodec}.
+     * It has the same meaning as the corresponding text request.
+     *
+     * @param client the client that sent the request
+     * @param frame  the request's type and payload
+     */
+    void handleClientFrame(ClientConnection client, ByteBuffer frame) {
+        long start = System.nanoTime();
+        int id = client.getClientId();
+        Room room = client.getRoom();
+        byte type = frame.get();
+        if (type == WireCodec.LEAVE) {
+            leave(client);
+        } else if (type == WireCodec.STATE) {
+            room.setKart(id, KartState.decode(frame));
+            EncodedWorld world = room.retainWorld();
+            try {
+                int[] indices = room.replyIndices(id);
+                sendState(client, world.binaryReply(indices, room.interest(world, id, indices)));
+            } finally {
+                world.release();
+            }
+        } else if (type == WireCodec.JOIN) {
+            join(client, KartState.decode(frame));
+        } else if (type == WireCodec.INPUT) {
+            int seq = WireCodec.readVarInt(frame);
+            int ackedTick = WireCodec.readVarInt(frame);
+            byte[] commands = new byte[WireCodec.readVarInt(frame)];
+            frame.get(commands);
+            room.tickLoop.input(client, seq, ackedTick, new String(commands, StandardCharsets.US_ASCII));
+        }
+        metrics.requestHandled(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a frame of state traffic to a client : in a datagram if the client set up the datagram transport
+     * and the frame fits, otherwise over the client's connection.
+     *
+     * @param client the client
+     * @param frame  the frame, not consumed
+     */
+    void sendState(ClientConnection client, ByteBuffer frame) {
+        if (udpTransport == null || !udpTransport.send(client, frame))
+            client.send(frame);
+    }
+
+    /**
+     * Sends a frame of state traffic given in parts to a client, see {@link #sendState(ClientConnection, ByteBuffer)}
+     *
+     * @param client the client
+     * @param parts  the frame's parts, only read during the call
+     */
+    void sendState(ClientConnection client, ByteBuffer[] parts) {
+        if (udpTransport == null || !udpTransport.send(client, parts))
+            client.send(parts);
+    }
+
+    /**
+     * A client asked to leave : it is disconnected and the other clients of its room are told.
+     *
+     * @param client the client leaving
+     */
+    private void leave(ClientConnection client) {
+        int id = client.getClientId();
+        client.close();
+        log("Client closed : " + id);
+        log("Game Over !");
+        KartRegistry registry = client.getRoom().registry;
+        for (int i = 0; i < registry.limit(); i++) {
+            ClientConnection other = registry.client(i);
+            if (other != null && i != id)
+                other.sendLeave(id);
+        }
+    }
+
+    /**
+     * A client joins the tick mode, see {@link TickLoop}.
+     *
+     * @param client the client joining
+     * @param state  initial state of the client's kart
+     */
+    private void join(ClientConnection client, KartState state) {
+        client.getRoom().tickLoop.join(client, state);
+        log("Client " + client.getClientId() + " joined the tick mode in room " + client.getRoom().number);
+    }
+
+    /**
+     * Handles interaction of the server with a client.
+     * Runs its blocking read loop on whichever thread it is given, platform or virtual.
+     */
+    private class ClientHandler implements Runnable, ClientConnection {
+
+        /**
+         * is this client running ?
+         */
+        boolean running;
+
+        /**
+         * Socket of this client
+         */
+        private final Socket socket;
+
+        /**
+         * To read data from the socket.
+         */
+        private BufferedReader in;
+
+        /**
+         * To write data to the socket
+         */
+        private PrintWriter out;
+
+        /**
+         * To write bytes already encoded, under out. Every send flushes it, so lines and bytes keep their order.
+         */
+        private BufferedOutputStream rawOut;
+
+        private WritableByteChannel rawChannel;
+
+        /**
+         * The socket's input stream, counting the bytes received
+         */
+        private InputStream socketIn;
+
+        /**
+         * To read frames once the client switched to the binary format, null until then
+         */
+        private DataInputStream binaryIn;
+
+        /**
+         * Whether the client switched to the binary format
+         */
+        private volatile boolean binary;
+
+        /**
+         * Guards out, which is also written by other clients' threads.
+         * A ReentrantLock rather than synchronized, so that a virtual thread blocked in a write does not pin its carrier.
+         */
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        /**
+         * Id of this client in its room.
+         * By storing the client's id in its handler, we don't need to rely on the client's requests to infer its id.
+         */
+        final int id;
+
+        /**
+         * The room the client is seated in
+         */
+        final Room room;
+
+        /**
+         * Initializes the in, out and sends an identificatin to the connected client.
+         *
+         * @param socket Socket associated with this client.
+         * @throws IOException if the socket fails or the server is full, in which case the socket is closed
+         */
+        private ClientHandler(Socket socket) throws IOException {
+            this.socket = socket;
+            Room.Seat seat;
+            try {
+                socketIn = metrics.countIn(socket.getInputStream());
+                in = new BufferedReader(new InputStreamReader(socketIn));
+                rawOut = new BufferedOutputStream(metrics.countOut(socket.getOutputStream()), SEND_BUFFER_SIZE);
+                rawChannel = Channels.newChannel(rawOut);
+                out = new PrintWriter(rawOut);
+                seat = joinRoom();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            room = seat.room;
+            id = seat.id;
+            out.println(id);
+            out.flush();
+            running = true;
+        }
+
+        /**
+         * Continuously listens to the client's.
+         * when the client stops, the server is notified.
+         */
+        @Override
+        public void run() {
+            metrics.acceptDequeued();
+            String line;
+            try {
+                while (running) {
+                    try {
+                        if (binaryIn != null) {
+                            handleClientFrame(this, WireCodec.readFrame(binaryIn));
+                            continue;
+                        }
+                        line = in.readLine();
+                        handleClientRequest(this, line);
+                        if (line == null) {
+                            close(); // the client closed the connection, as the binary path finds out by EOFException
+                            break;
+                        }
+                    } catch (Exception e) {
+                        error("Failed to load client request" + e.getMessage());
+                        close(); // e.g. an invalid frame length, nothing more can be read off the socket
+                        break;
+                    }
+                }
+            } finally {
+                // even after an Error, so that the client's seat is freed
+                clientLeft(this);
+            }
+        }
+
+        @Override
+        public int getClientId() {
+            return id;
+        }
+
+        @Override
+        public Room getRoom() {
+            return room;
+        }
+
+        @Override
+        public void send(String message) {
+            writeLock.lock();
+            try {
+                out.println(message);
+                out.flush();
+                if (out.checkError() && running)
+                    metrics.writeFailed(); // the PrintWriter keeps the exception to itself
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public void send(ByteBuffer frame) {
+            send(new ByteBuffer[]{frame});
+        }
+
+        /**
+         * The parts are gathered in rawOut and written with one flush
+         */
+        @Override
+        public void send(ByteBuffer[] parts) {
+            writeLock.lock();
+            try {
+                for (ByteBuffer part : parts) {
+                    rawChannel.write(part.duplicate());
+                }
+                rawOut.flush();
+            } catch (IOException e) {
+                // the client is going away, its read loop finds out and the client leaves from there
+                metrics.writeFailed();
+                if (running)
+                    serverLog.warn("Failed to send to client " + id + ": " + e.getMessage());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void sendLeave(int clientId) {
+            writeLock.lock();
+            try {
+                if (binary)
+                    send(WireCodec.leaveFrame(clientId));
+                else
+                    send("P0#" + clientId);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * The client does not send anything between the negotiation line and the reply,
+         * so nothing meant for binaryIn has been read ahead by in.
+         */
+        @Override
+        public void startBinary() {
+            writeLock.lock();
+            try {
+                send(WireCodec.NEGOTIATION);
+                binaryIn = new DataInputStream(new BufferedInputStream(socketIn));
+                binary = true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            try {
+                socket.close();
+            } catch (Exception e) {
+                error("Failed to disconnect client " + id + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Figures of a running server, as returned by {@link #getStats()}
+     */
+    static final class Stats {
+        final boolean running;
+        final int port;
+        final Mode mode;
+        final long uptimeMillis;
+        final int rooms;
+        final int clients;
+        final long connections;
+        final int karts;
+        final long droppedLogs;
+
+        private Stats(boolean running, int port, Mode mode, long uptimeMillis, int rooms, int clients,
+                      long connections, int karts, long droppedLogs) {
+            this.running = running;
+            this.port = port;
+            this.mode = mode;
+            this.uptimeMillis = uptimeMillis;
+            this.rooms = rooms;
+            this.clients = clients;
+            this.connections = connections;
+            this.karts = karts;
+            this.droppedLogs = droppedLogs;
+        }
+
+        @Override
+        public String toString() {
+            if (!running)
+                return "stopped";
+            return "port " + port + ", " + mode + ", up " + uptimeMillis / 1000 + "s, " + rooms + " rooms, "
+                    + clients + " clients (" + connections + " connections), " + karts + " karts, "
+                    + droppedLogs + " log messages dropped";
+        }
+    }
+
+    /**
+     * Runs the server without any GUI, e.g. in a container.
+     * <p>
+     * Options : --port &lt;port&gt;, --mode threads|virtual|nio, --tick-rate &lt;ticks per second&gt;,
+     * --log-level DEBUG|INFO|WARN|ERROR, --log-file &lt;file&gt;, --max-clients &lt;n&gt;, --room-size &lt;n&gt;,
+     * --interest-radius &lt;distance, 0 for none&gt;, --metrics-port &lt;port, 0 for none&gt;,
+     * --replay-dir &lt;directory to record the races in&gt;, --finalize.
+     * The log is printed to the standard output as well as written to the log file. Once started, the lines
+     * "stats" and "stop" on the standard input print the server's figures and stop it.
+     * With a metrics port, the server's metrics are served on http://127.0.0.1:&lt;port&gt;/metrics,
+     * see {@link MetricsEndpoint}. They are always available through JMX, see {@link ServerMetricsMXBean}.
+     *
+     * @param args the options
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        Mode mode = Mode.THREADS;
+        int tickRate = DEFAULT_TICK_RATE;
+        ServerLog.Level level = ServerLog.Level.INFO;
+        String logFile = "server.log";
+        int maxClients = DEFAULT_MAX_CLIENTS;
+        int roomSize = DEFAULT_ROOM_SIZE;
+        int interestRadius = DEFAULT_INTEREST_RADIUS;
+        int metricsPort = 0;
+        Path replayDirectory = null;
+        boolean finalize = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--mode" -> mode = Mode.valueOf(args[++i].toUpperCase());
+                    case "--tick-rate" -> tickRate = Integer.parseInt(args[++i]);
+                    case "--log-level" -> level = ServerLog.Level.valueOf(args[++i].toUpperCase());
+                    case "--log-file" -> logFile = args[++i];
+                    case "--max-clients" -> maxClients = Integer.parseInt(args[++i]);
+                    case "--room-size" -> roomSize = Integer.parseInt(args[++i]);
+                    case "--interest-radius" -> interestRadius = Integer.parseInt(args[++i]);
+                    case "--metrics-port" -> metricsPort = Integer.parseInt(args[++i]);
+                    case "--replay-dir" -> replayDirectory = Path.of(args[++i]);
+                    case "--finalize" -> finalize = true;
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (tickRate < 1)
+                throw new IllegalArgumentException("Invalid tick rate " + tickRate);
+            if (maxClients < 1)
+                throw new IllegalArgumentException("Invalid maximum number of clients " + maxClients);
+            if (roomSize < 1)
+                throw new IllegalArgumentException("Invalid room size " + roomSize);
+            if (interestRadius < 0)
+                throw new IllegalArgumentException("Invalid interest radius " + interestRadius);
+            if (metricsPort < 0)
+                throw new IllegalArgumentException("Invalid metrics port " + metricsPort);
+            if (replayDirectory != null && !Files.isDirectory(replayDirectory))
+                throw new IllegalArgumentException("No directory " + replayDirectory);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + "\nOptions : [--port <port>] [--mode threads|virtual|nio]"
+                    + " [--tick-rate <ticks/s>] [--log-level DEBUG|INFO|WARN|ERROR] [--log-file <file>]"
+                    + " [--max-clients <n>] [--room-size <n>] [--interest-radius <distance>] [--metrics-port <port>]"
+                    + " [--replay-dir <directory>] [--finalize]");
+            System.exit(2);
+        }
+
+        ServerLog serverLog = new ServerLog(new File(logFile), System.out::print);
+        serverLog.setLevel(level);
+        serverLog.start();
+        ServerEngine engine = new ServerEngine(serverLog, maxClients, roomSize, new Listener() {
+            @Override
+            public void error(String message) {
+                // already logged
+            }
+
+            @Override
+            public void stopped() {
+                System.exit(0);
+            }
+        });
+        engine.setFinalize(finalize);
+        engine.setInterestRadius(interestRadius);
+        engine.setReplayDirectory(replayDirectory);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            engine.stop();
+            serverLog.stop();
+        }));
+        try {
+            engine.start(port, mode, tickRate);
+        } catch (IOException e) {
+            System.err.println("Failed to initialize server socket : " + e.getMessage());
+            System.exit(1);
+        }
+        if (metricsPort > 0) {
+            try {
+                MetricsEndpoint endpoint = new MetricsEndpoint(metricsPort, engine.metrics::text);
+                endpoint.start();
+                engine.log("Metrics on http://127.0.0.1:" + endpoint.getPort() + "/metrics");
+            } catch (IOException e) {
+                engine.error("Metrics endpoint not started : " + e.getMessage());
+            }
+        }
+
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                if (line.trim().equals("stats")) {
+                    System.out.println(engine.getStats());
+                } else if (line.trim().equals("stop")) {
+                    System.exit(0);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // no console, e.g. in a container, run until killed
+    }
+}
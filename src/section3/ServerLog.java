@@ -0,0 +1,335 @@
+package section3;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The server's log. Logging threads only put messages in a bounded ring, a single writer thread takes them off,
+ * formats them and writes them to a rolling log file and to a tail sink, such as the server's transcript.
+ * <p>
+ * Logging never blocks and never takes a lock : a slot of the ring is claimed with one compare and set, and when the
+ * ring is full the message is dropped and counted instead. Messages below the level are dropped before being built
+ * if the caller checks {@link #isEnabled(Level)}, and per-frame messages should be guarded by {@link #sample(Level)},
+ * which only lets one in SAMPLE_RATE through.
+ */
+class ServerLog {
+
+    enum Level {DEBUG, INFO, WARN, ERROR}
+
+    /**
+     * Number of messages the ring holds, a power of two
+     */
+    private static final int CAPACITY = 1 << 13;
+
+    /**
+     * One in this many per-frame messages is logged, see {@link #sample(Level)}
+     */
+    static final int SAMPLE_RATE = 100;
+
+    /**
+     * Size of the log file before it is rolled over
+     */
+    private static final long MAX_FILE_SIZE = 8 << 20;
+
+    /**
+     * Number of rolled over log files kept, e.g. server.log.1 to server.log.3
+     */
+    private static final int MAX_FILES = 3;
+
+    /**
+     * Messages the writer hands to the tail sink at most at once
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Nanoseconds the writer sleeps when the ring is empty
+     */
+    private static final long IDLE_PARK = 2_000_000;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    //The ring. A slot is free for the message numbered n when its sequence is n, and holds it when its sequence is n + 1
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final String[] messages = new String[CAPACITY];
+    private final Level[] levels = new Level[CAPACITY];
+    private final String[] threads = new String[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+
+    /**
+     * Number of the next message to be put in the ring
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Number of the next message to be taken off the ring, only used by the writer
+     */
+    private long head;
+
+    /**
+     * Messages dropped because the ring was full
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Log file, null to log to the tail sink only
+     */
+    private final File file;
+
+    /**
+     * Receives the formatted messages in batches, on the writer thread. May be null.
+     */
+    private final Consumer<String> tailSink;
+
+    private volatile Level level = Level.INFO;
+
+    private volatile boolean running;
+
+    private Thread writer;
+
+    private Writer fileWriter;
+    private long fileSize;
+
+    /**
+     * @param file     log file, rolled over when it grows large, or null for no file
+     * @param tailSink receives the formatted messages in batches of lines on the writer thread, or null
+     */
+    ServerLog(File file, Consumer<String> tailSink) {
+        this.file = file;
+        this.tailSink = tailSink;
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Starts the writer thread
+     */
+    synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes the messages still in the ring, then stops the writer thread and closes the log file
+     */
+    synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param level the lowest level logged from now on
+     */
+    void setLevel(Level level) {
+        this.level = level;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return whether messages of the given level are logged
+     */
+    boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * For messages logged every frame or every request. Costs a thread local random number, nothing shared.
+     *
+     * @return whether this one of the messages of the given level should be logged
+     */
+    boolean sample(Level level) {
+        return isEnabled(level) && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    /**
+     * @return number of messages dropped so far because the writer couldn't keep up
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Logs a message, unless its level is not enabled or the ring is full. Never blocks.
+     */
+    void log(Level level, String message) {
+        if (!isEnabled(level))
+            return;
+        long n = tail.get();
+        while (true) {
+            int slot = (int) n & (CAPACITY - 1);
+            long sequence = sequences.get(slot);
+            if (sequence == n) {
+                if (tail.compareAndSet(n, n + 1))
+                    break;
+                n = tail.get();
+            } else if (sequence < n) {
+                dropped.incrementAndGet(); // full
+                return;
+            } else {
+                n = tail.get(); // claimed by another thread meanwhile
+            }
+        }
+        int slot = (int) n & (CAPACITY - 1);
+        messages[slot] = message;
+        levels[slot] = level;
+        threads[slot] = Thread.currentThread().getName();
+        times[slot] = System.currentTimeMillis();
+        sequences.lazySet(slot, n + 1); // publishes the fields above to the writer
+    }
+
+    void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Takes messages off the ring and writes them until stopped, then writes what is left
+     */
+    private void writeLoop() {
+        openFile();
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            boolean stopping = !running;
+            int count = 0;
+            while (count < MAX_BATCH && take(batch))
+                count++;
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.append(TIME_FORMAT.format(LocalTime.now())).append(" WARN  [log-writer] ").append(drops - reportedDrops)
+                        .append(" messages dropped, the log couldn't keep up\n");
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                write(batch.toString());
+                batch.setLength(0);
+            } else if (stopping) {
+                break;
+            } else {
+                flushFile();
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Takes the next message off the ring and appends it, formatted, to the batch
+     *
+     * @return false if the ring is empty
+     */
+    private boolean take(StringBuilder batch) {
+        int slot = (int) head & (CAPACITY - 1);
+        if (sequences.get(slot) != head + 1)
+            return false;
+        String level = levels[slot].name();
+        TIME_FORMAT.formatTo(LocalTime.ofInstant(Instant.ofEpochMilli(times[slot]), ZoneId.systemDefault()), batch);
+        batch.append(' ').append(level).append("     ", level.length(), 5)
+                .append(" [").append(threads[slot]).append("] ")
+                .append(messages[slot]).append('\n');
+        messages[slot] = null;
+        threads[slot] = null;
+        sequences.lazySet(slot, head + CAPACITY); // free for the message one lap later
+        head++;
+        return true;
+    }
+
+    /**
+     * Writes a batch of formatted messages to the file and the tail sink
+     */
+    private void write(String lines) {
+        if (fileWriter != null) {
+            try {
+                if (fileSize + lines.length() > MAX_FILE_SIZE)
+                    rollOver();
+                fileWriter.write(lines);
+                fileSize += lines.length();
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeFile(); // keep logging to the tail sink at least
+            }
+        }
+        if (tailSink != null)
+            tailSink.accept(lines);
+    }
+
+    /**
+     * Renames the log file to .1, shifting the older ones up to MAX_FILES, and starts a new one
+     */
+    private void rollOver() throws IOException {
+        fileWriter.close();
+        new File(file.getPath() + "." + MAX_FILES).delete();
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+        fileWriter = new BufferedWriter(new FileWriter(file));
+        fileSize = 0;
+    }
+
+    private void openFile() {
+        if (file == null)
+            return;
+        try {
+            fileSize = file.length();
+            fileWriter = new BufferedWriter(new FileWriter(file, true));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flushFile() {
+        if (fileWriter == null)
+            return;
+        try {
+            fileWriter.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        if (fileWriter == null)
+            return;
+        try {
+            fileWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        fileWriter = null;
+    }
+}
@@ -0,0 +1,268 @@
+package section3;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a {@link ServerEngine} does, from any of its threads, for JMX and the {@link MetricsEndpoint}.
+ * <p>
+ * Recording never locks : counters are LongAdders, which threads update without contending once their cells are
+ * allocated, and latencies go in {@link LatencyHistogram}s, whose cost is detailed there. The bytes are counted
+ * where they meet the socket, whichever mode services the clients, and include the datagrams.
+ * <p>
+ * The round trip times are only known for the clients in tick mode, which acknowledge the snapshots with their inputs :
+ * a request of the request/reply protocol says nothing of when the previous reply arrived. They include the client's
+ * wait for its next frame to send an input.
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+
+    private final ServerEngine server;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+    private final LongAdder droppedWrites = new LongAdder();
+
+    /**
+     * Clients accepted but not yet handled by their thread or event loop
+     */
+    private final AtomicInteger acceptQueue = new AtomicInteger();
+
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+
+    //The requests per second are computed from two samples of the requests count, guarded by this
+    private long sampledAt = System.nanoTime();
+    private long sampledRequests;
+    private double requestsPerSecond;
+
+    /**
+     * Name the metrics are registered under, null if they are not
+     */
+    private ObjectName name;
+
+    /**
+     * @param server the server measured
+     */
+    ServerMetrics(ServerEngine server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers the metrics with the platform's MBean server, for the server listening on the given port.
+     * A failure is only logged, the server runs without them.
+     */
+    synchronized void register(int port) {
+        try {
+            name = new ObjectName("section3:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+            server.serverLog.warn("Metrics not registered with JMX : " + e.getMessage());
+        }
+    }
+
+    synchronized void unregister() {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            server.serverLog.warn("Metrics not unregistered from JMX : " + e.getMessage());
+        }
+        name = null;
+    }
+
+    /**
+     * @param nanos time taken to handle a request
+     */
+    void requestHandled(long nanos) {
+        requests.increment();
+        requestLatency.record(nanos);
+    }
+
+    void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void writeFailed() {
+        failedWrites.increment();
+    }
+
+    void writeDropped() {
+        droppedWrites.increment();
+    }
+
+    /**
+     * A client was accepted, it is queued until its thread or event loop takes it
+     */
+    void acceptQueued() {
+        acceptQueue.incrementAndGet();
+    }
+
+    /**
+     * A client accepted was taken by its thread or event loop
+     */
+    void acceptDequeued() {
+        acceptQueue.decrementAndGet();
+    }
+
+    /**
+     * @param nanos time from a snapshot being sent to a client's input acknowledging it
+     */
+    void roundTrip(long nanos) {
+        roundTrips.record(nanos);
+    }
+
+    /**
+     * @return the stream, counting the bytes read from it as received
+     */
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @return the stream, counting the bytes written to it as sent
+     */
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len); // FilterOutputStream would write them one by one
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getStats().clients;
+    }
+
+    @Override
+    public int getAcceptQueueDepth() {
+        return acceptQueue.get();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public synchronized double getRequestsPerSecond() {
+        long now = System.nanoTime();
+        if (now - sampledAt >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = requests.sum();
+            requestsPerSecond = (count - sampledRequests) * 1e9 / (now - sampledAt);
+            sampledRequests = count;
+            sampledAt = now;
+        }
+        return requestsPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFailedWrites() {
+        return failedWrites.sum();
+    }
+
+    @Override
+    public long getDroppedWrites() {
+        return droppedWrites.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestLatencyMicros() {
+        return MetricsEndpoint.percentiles(requestLatency);
+    }
+
+    @Override
+    public Map<String, Long> getRoundTripMicros() {
+        return MetricsEndpoint.percentiles(roundTrips);
+    }
+
+    @Override
+    public Map<String, Double> getClientRoundTripMillis() {
+        Map<String, Double> millis = new TreeMap<>();
+        for (int number = 0; number < server.rooms.length(); number++) {
+            Room room = server.rooms.get(number);
+            if (room == null)
+                continue;
+            for (Map.Entry<Integer, Long> roundTrip : room.tickLoop.roundTrips().entrySet()) {
+                millis.put(number + "/" + roundTrip.getKey(), roundTrip.getValue() / 1e6);
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format, see {@link MetricsEndpoint}
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        MetricsEndpoint.metric(text, "kart_server_connected_clients", getConnectedClients());
+        MetricsEndpoint.metric(text, "kart_server_accept_queue_depth", getAcceptQueueDepth());
+        MetricsEndpoint.metric(text, "kart_server_requests_total", getRequests());
+        MetricsEndpoint.metric(text, "kart_server_requests_per_second", getRequestsPerSecond());
+        MetricsEndpoint.metric(text, "kart_server_bytes_in_total", getBytesIn());
+        MetricsEndpoint.metric(text, "kart_server_bytes_out_total", getBytesOut());
+        MetricsEndpoint.metric(text, "kart_server_failed_writes_total", getFailedWrites());
+        MetricsEndpoint.metric(text, "kart_server_dropped_writes_total", getDroppedWrites());
+        MetricsEndpoint.summary(text, "kart_server_request_latency_micros", requestLatency);
+        MetricsEndpoint.summary(text, "kart_server_round_trip_micros", roundTrips);
+        for (Map.Entry<String, Double> roundTrip : getClientRoundTripMillis().entrySet()) {
+            String[] key = roundTrip.getKey().split("/");
+            MetricsEndpoint.metric(text, "kart_server_client_round_trip_millis{room=\"" + key[0] + "\",client=\""
+                    + key[1] + "\"}", roundTrip.getValue());
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package section3;
+
+import java.util.Map;
+
+/**
+ * Figures of a running {@link ServerEngine}, as seen through JMX under section3:type=Server,port=&lt;port&gt;,
+ * e.g. in jconsole. The same figures are served as plain text by the {@link MetricsEndpoint}.
+ * <p>
+ * Counts are totals since the server was created. Latencies are in microseconds, as percentiles keyed
+ * p50, p90, p99, p99.9 and max, along with the count of latencies recorded.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return number of clients connected
+     */
+    int getConnectedClients();
+
+    /**
+     * @return number of clients accepted but not yet handled by their thread or event loop
+     */
+    int getAcceptQueueDepth();
+
+    /**
+     * @return number of requests handled, text lines and binary frames alike
+     */
+    long getRequests();
+
+    /**
+     * @return requests handled per second, since the previous time it was asked at least a second ago
+     */
+    double getRequestsPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return number of writes to a client that failed, e.g. the client went away
+     */
+    long getFailedWrites();
+
+    /**
+     * @return number of writes dropped since the client's connection was already closed
+     */
+    long getDroppedWrites();
+
+    /**
+     * @return time from a request arriving to its reply being written or queued
+     */
+    Map<String, Long> getRequestLatencyMicros();
+
+    /**
+     * @return time from a snapshot being sent to an input acknowledging it, over the clients in tick mode
+     */
+    Map<String, Long> getRoundTripMicros();
+
+    /**
+     * @return smoothed round trip time of each client in tick mode, keyed room/client
+     */
+    Map<String, Double> getClientRoundTripMillis();
+}
@@ -0,0 +1,298 @@
+package section3;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * An immutable snapshot of the world at a server tick, see {@link TickLoop}.
+ * Holds every kart's state along with the last input the server applied to it, sorted by kart id.
+ * <p>
+ * A snapshot is sent either in full (a keyframe) or as a delta against an older snapshot the client acknowledged.
+ * A delta only carries the karts that changed, and for each of them a bit mask of the changed fields
+ * followed by the values of those fields :
+ * [tick][base tick][count]([id][mask][fields])*, ids, ticks and counts being varints.
+ */
+final class Snapshot {
+
+    //Bits of the delta mask, in the order the fields are written
+    private static final int CENTER_X = 1;
+    private static final int CENTER_Y = 1 << 1;
+    private static final int SIZE_X = 1 << 2;
+    private static final int SIZE_Y = 1 << 3;
+    private static final int SPEED = 1 << 4;
+    private static final int DIRECTION_STUCK = 1 << 5;
+    private static final int LAST_INPUT = 1 << 6;
+    private static final int ALL = (1 << 7) - 1;
+
+    /**
+     * Set when the kart is no longer in the world
+     */
+    private static final int REMOVED = 1 << 7;
+
+    /**
+     * Maximum size of one kart's entry in a keyframe or a delta
+     */
+    static final int MAX_ENTRY_SIZE = 2 * WireCodec.MAX_VARINT_SIZE + 1 + KartState.BINARY_SIZE;
+
+    final int tick;
+    final int[] ids;
+    final int[] lastInputs;
+    final KartState[] states;
+
+    /**
+     * @param tick       the tick
+     * @param ids        kart ids, in ascending order
+     * @param lastInputs last input applied to each kart
+     * @param states     state of each kart
+     */
+    Snapshot(int tick, int[] ids, int[] lastInputs, KartState[] states) {
+        this.tick = tick;
+        this.ids = ids;
+        this.lastInputs = lastInputs;
+        this.states = states;
+    }
+
+    /**
+     * @return number of karts in the snapshot
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return maximum size of this snapshot's keyframe or delta payload
+     */
+    int maxEncodedSize() {
+        return 3 * WireCodec.MAX_VARINT_SIZE + size() * MAX_ENTRY_SIZE;
+    }
+
+    /**
+     * Encodes the snapshot in the text format - P4#&lt;tick&gt;#&lt;id&gt;?&lt;last input&gt;?&lt;kart data&gt;#...
+     */
+    String encode() {
+        StringBuilder snapshot = new StringBuilder("P4#").append(tick);
+        for (int i = 0; i < ids.length; i++) {
+            snapshot.append('#').append(ids[i]).append('?').append(lastInputs[i]).append('?').append(states[i].encode());
+        }
+        return snapshot.toString();
+    }
+
+    /**
+     * Decodes a snapshot in the text format
+     */
+    static Snapshot decode(String snapshot) {
+        StringTokenizer st = new StringTokenizer(snapshot, "#");
+        st.nextToken(); // P4
+        int tick = Integer.parseInt(st.nextToken());
+        int count = st.countTokens();
+        int[] ids = new int[count];
+        int[] lastInputs = new int[count];
+        KartState[] states = new KartState[count];
+        for (int i = 0; i < count; i++) {
+            StringTokenizer entry = new StringTokenizer(st.nextToken(), "?");
+            ids[i] = Integer.parseInt(entry.nextToken());
+            lastInputs[i] = Integer.parseInt(entry.nextToken());
+            states[i] = KartState.decode(entry.nextToken());
+        }
+        return new Snapshot(tick, ids, lastInputs, states);
+    }
+
+    /**
+     * Encodes the whole snapshot (a keyframe) in the binary format - [tick][count]([id][last input][kart])*
+     */
+    void encode(ByteBuffer buffer) {
+        WireCodec.writeVarInt(buffer, tick);
+        WireCodec.writeVarInt(buffer, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            WireCodec.writeVarInt(buffer, ids[i]);
+            WireCodec.writeVarInt(buffer, lastInputs[i]);
+            states[i].encode(buffer);
+        }
+    }
+
+    /**
+     * Decodes a keyframe in the binary format
+     */
+    static Snapshot decode(ByteBuffer buffer) {
+        int tick = WireCodec.readVarInt(buffer);
+        int count = WireCodec.readVarInt(buffer);
+        int[] ids = new int[count];
+        int[] lastInputs = new int[count];
+        KartState[] states = new KartState[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = WireCodec.readVarInt(buffer);
+            lastInputs[i] = WireCodec.readVarInt(buffer);
+            states[i] = KartState.decode(buffer);
+        }
+        return new Snapshot(tick, ids, lastInputs, states);
+    }
+
+    /**
+     * Encodes the changes from an older snapshot to this one
+     *
+     * @param buffer buffer to write to
+     * @param base   the older snapshot, which the receiver has
+     */
+    void encodeDelta(ByteBuffer buffer, Snapshot base) {
+        WireCodec.writeVarInt(buffer, tick);
+        WireCodec.writeVarInt(buffer, base.tick);
+        int countPosition = buffer.position();
+        buffer.position(countPosition + WireCodec.MAX_VARINT_SIZE); // room for the count, written at the end
+        int count = 0;
+        int i = 0, j = 0; // both snapshots are sorted by id
+        while (i < ids.length || j < base.ids.length) {
+            if (j == base.ids.length || (i < ids.length && ids[i] < base.ids[j])) {
+                writeEntry(buffer, ids[i], ALL, lastInputs[i], states[i]);
+                i++;
+                count++;
+            } else if (i == ids.length || base.ids[j] < ids[i]) {
+                WireCodec.writeVarInt(buffer, base.ids[j]);
+                buffer.put((byte) REMOVED);
+                j++;
+                count++;
+            } else {
+                int mask = changes(base.states[j], states[i]) | (base.lastInputs[j] != lastInputs[i] ? LAST_INPUT : 0);
+                if (mask != 0) {
+                    writeEntry(buffer, ids[i], mask, lastInputs[i], states[i]);
+                    count++;
+                }
+                i++;
+                j++;
+            }
+        }
+        // the count is written as a padded varint, so that the entries need not be moved
+        int end = buffer.position();
+        buffer.position(countPosition);
+        for (int k = 0; k < WireCodec.MAX_VARINT_SIZE - 1; k++) {
+            buffer.put((byte) ((count & 0x7F) | 0x80));
+            count >>>= 7;
+        }
+        buffer.put((byte) count);
+        buffer.position(end);
+    }
+
+    /**
+     * Decodes a delta against a snapshot this side already has
+     *
+     * @param buffer buffer to read from
+     * @param base   the snapshot the delta was made against
+     * @return the new snapshot
+     */
+    static Snapshot decodeDelta(ByteBuffer buffer, Snapshot base) {
+        int tick = WireCodec.readVarInt(buffer);
+        WireCodec.readVarInt(buffer); // base tick, already used to find the base
+        int count = WireCodec.readVarInt(buffer);
+        int size = base.ids.length + count; // upper bound, trimmed below
+        int[] ids = new int[size];
+        int[] lastInputs = new int[size];
+        KartState[] states = new KartState[size];
+        int n = 0;
+        int j = 0;
+        for (int k = 0; k < count; k++) {
+            int id = WireCodec.readVarInt(buffer);
+            int mask = buffer.get() & 0xFF;
+            // karts unchanged since the base come first
+            while (j < base.ids.length && base.ids[j] < id) {
+                ids[n] = base.ids[j];
+                lastInputs[n] = base.lastInputs[j];
+                states[n++] = base.states[j++];
+            }
+            boolean inBase = j < base.ids.length && base.ids[j] == id;
+            if ((mask & REMOVED) != 0) {
+                if (inBase)
+                    j++;
+                continue;
+            }
+            ids[n] = id;
+            lastInputs[n] = inBase ? base.lastInputs[j] : 0;
+            states[n] = inBase ? base.states[j] : null;
+            readEntry(buffer, mask, n, lastInputs, states);
+            n++;
+            if (inBase)
+                j++;
+        }
+        while (j < base.ids.length) {
+            ids[n] = base.ids[j];
+            lastInputs[n] = base.lastInputs[j];
+            states[n++] = base.states[j++];
+        }
+        if (n < size) {
+            ids = Arrays.copyOf(ids, n);
+            lastInputs = Arrays.copyOf(lastInputs, n);
+            states = Arrays.copyOf(states, n);
+        }
+        return new Snapshot(tick, ids, lastInputs, states);
+    }
+
+    /**
+     * @return mask of the fields that differ between the two states
+     */
+    private static int changes(KartState from, KartState to) {
+        int mask = 0;
+        if (from.centerX != to.centerX)
+            mask |= CENTER_X;
+        if (from.centerY != to.centerY)
+            mask |= CENTER_Y;
+        if (from.sizeX != to.sizeX)
+            mask |= SIZE_X;
+        if (from.sizeY != to.sizeY)
+            mask |= SIZE_Y;
+        if (from.speed != to.speed)
+            mask |= SPEED;
+        if (from.direction != to.direction || from.stuck != to.stuck)
+            mask |= DIRECTION_STUCK;
+        return mask;
+    }
+
+    private static void writeEntry(ByteBuffer buffer, int id, int mask, int lastInput, KartState state) {
+        WireCodec.writeVarInt(buffer, id);
+        buffer.put((byte) mask);
+        if ((mask & CENTER_X) != 0)
+            buffer.putShort((short) state.centerX);
+        if ((mask & CENTER_Y) != 0)
+            buffer.putShort((short) state.centerY);
+        if ((mask & SIZE_X) != 0)
+            buffer.put((byte) state.sizeX);
+        if ((mask & SIZE_Y) != 0)
+            buffer.put((byte) state.sizeY);
+        if ((mask & SPEED) != 0)
+            buffer.put((byte) state.speed);
+        if ((mask & DIRECTION_STUCK) != 0)
+            buffer.put((byte) (state.direction | (state.stuck ? KartState.STUCK_BIT : 0)));
+        if ((mask & LAST_INPUT) != 0)
+            WireCodec.writeVarInt(buffer, lastInput);
+    }
+
+    /**
+     * Reads the changed fields of an entry over the values already at index n
+     */
+    private static void readEntry(ByteBuffer buffer, int mask, int n, int[] lastInputs, KartState[] states) {
+        KartState old = states[n];
+        int centerX = old == null ? 0 : old.centerX;
+        int centerY = old == null ? 0 : old.centerY;
+        int sizeX = old == null ? 0 : old.sizeX;
+        int sizeY = old == null ? 0 : old.sizeY;
+        int speed = old == null ? 0 : old.speed;
+        int direction = old == null ? 0 : old.direction;
+        boolean stuck = old != null && old.stuck;
+        if ((mask & CENTER_X) != 0)
+            centerX = buffer.getShort();
+        if ((mask & CENTER_Y) != 0)
+            centerY = buffer.getShort();
+        if ((mask & SIZE_X) != 0)
+            sizeX = buffer.get() & 0xFF;
+        if ((mask & SIZE_Y) != 0)
+            sizeY = buffer.get() & 0xFF;
+        if ((mask & SPEED) != 0)
+            speed = buffer.get() & 0xFF;
+        if ((mask & DIRECTION_STUCK) != 0) {
+            int packed = buffer.get();
+            direction = packed & 0x0F;
+            stuck = (packed & KartState.STUCK_BIT) != 0;
+        }
+        if ((mask & LAST_INPUT) != 0)
+            lastInputs[n] = WireCodec.readVarInt(buffer);
+        states[n] = new KartState(centerX, centerY, sizeX, sizeY, speed, direction, stuck);
+    }
+}
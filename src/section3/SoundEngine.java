@@ -0,0 +1,138 @@
+package section3;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Clip;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays the sound effects of the game.
+ * <p>
+ * Each effect is decoded once, in the background, into a few clips that are opened once and played again and
+ * again, so that playing an effect neither reads the file nor opens an audio line. The clips are started on a thread
+ * of its own, so the game loop never waits for the audio system.
+ * <p>
+ * An effect played again within MIN_REPEAT_INTERVAL of its last start, or while all its clips are still playing,
+ * is skipped : a kart scraping along a wall starts the same effect every frame.
+ */
+final class SoundEngine {
+
+    /**
+     * Number of times an effect can play at once
+     */
+    static final int CLIPS_PER_EFFECT = 3;
+
+    /**
+     * Shortest time between two starts of the same effect, in nanoseconds
+     */
+    static final long MIN_REPEAT_INTERVAL = 150_000_000L;
+
+    /**
+     * The clips of an effect. Only used on the player thread.
+     */
+    private static final class Effect {
+        private final Clip[] clips;
+
+        /**
+         * When the effect was last started, in System.nanoTime()
+         */
+        private long startedAt;
+
+        private Effect(Clip[] clips) {
+            this.clips = clips;
+            startedAt = System.nanoTime() - MIN_REPEAT_INTERVAL;
+        }
+
+        private void play() {
+            long now = System.nanoTime();
+            if (now - startedAt < MIN_REPEAT_INTERVAL)
+                return;
+            for (Clip clip : clips) {
+                if (!clip.isRunning()) {
+                    clip.stop(); // a clip that played to its end is still "active" until stopped
+                    clip.setFramePosition(0);
+                    clip.start();
+                    startedAt = now;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The effects by path, null for the ones that failed to load
+     */
+    private static final Map<String, CompletableFuture<Effect>> effects = new ConcurrentHashMap<>();
+
+    private static final ExecutorService player = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sound");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SoundEngine() {
+    }
+
+    /**
+     * Starts decoding effects in the background
+     *
+     * @param paths paths of the sound files
+     */
+    static void preload(String... paths) {
+        for (String path : paths) {
+            load(path);
+        }
+    }
+
+    /**
+     * Plays an effect, once it is loaded, unless it was just played. Never waits.
+     *
+     * @param path path of the sound file
+     */
+    static void play(String path) {
+        load(path).thenAcceptAsync(effect -> {
+            if (effect != null)
+                effect.play();
+        }, player);
+    }
+
+    private static CompletableFuture<Effect> load(String path) {
+        return effects.computeIfAbsent(path, p -> CompletableFuture.supplyAsync(() -> decode(p)));
+    }
+
+    /**
+     * @return the effect with its clips opened, null if it failed to load
+     */
+    private static Effect decode(String path) {
+        InputStream resource = SoundEngine.class.getClassLoader().getResourceAsStream(path);
+        if (resource == null) {
+            System.out.println("Sound not found : " + path);
+            return null;
+        }
+        Clip[] clips = new Clip[CLIPS_PER_EFFECT];
+        try (AudioInputStream audio = AudioSystem.getAudioInputStream(new BufferedInputStream(resource))) {
+            AudioFormat format = audio.getFormat();
+            byte[] data = audio.readAllBytes();
+            for (int i = 0; i < clips.length; i++) {
+                clips[i] = AudioSystem.getClip();
+                clips[i].open(format, data, 0, data.length);
+            }
+            return new Effect(clips);
+        } catch (Exception e) {
+            // e.g. no audio device : the game goes on without sound
+            e.printStackTrace();
+            for (Clip clip : clips) {
+                if (clip != null)
+                    clip.close();
+            }
+            return null;
+        }
+    }
+}
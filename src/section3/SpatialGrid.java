@@ -0,0 +1,114 @@
+package section3;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A uniform grid over the track, telling which karts are in each cell, so that the karts near a point are found
+ * without looking at every kart. See {@link Room#interest(EncodedWorld, int, int[])}.
+ * <p>
+ * Each cell holds a bit set of kart ids. A kart is only moved from a cell to another when it crosses a cell border,
+ * which a kart does a few times a second at most. Bits are set and cleared atomically, so karts are moved by the
+ * threads updating them while other threads look them up, without locking.
+ */
+final class SpatialGrid {
+
+    /**
+     * Width and height of a cell, in track coordinates
+     */
+    static final int CELL_SIZE = 100;
+
+    //The track fits in 800 x 600, karts beyond are counted in the border cells
+    private static final int COLUMNS = 8;
+    private static final int ROWS = 6;
+
+    /**
+     * Number of 64 bit words of each cell's bit set
+     */
+    private final int words;
+
+    /**
+     * The cells' bit sets, cell c's being words c * words to (c + 1) * words - 1
+     */
+    private final AtomicLongArray cells;
+
+    /**
+     * Cell of each kart, -1 for none
+     */
+    private final AtomicIntegerArray cellOf;
+
+    /**
+     * @param capacity kart ids are below this
+     */
+    SpatialGrid(int capacity) {
+        words = (capacity + 63) / 64;
+        cells = new AtomicLongArray(COLUMNS * ROWS * words);
+        cellOf = new AtomicIntegerArray(capacity);
+        for (int id = 0; id < capacity; id++) {
+            cellOf.set(id, -1);
+        }
+    }
+
+    /**
+     * Puts a kart at a position, moving it to another cell if it crossed a border
+     */
+    void move(int id, int x, int y) {
+        int cell = row(y) * COLUMNS + column(x);
+        int previous = cellOf.getAndSet(id, cell);
+        if (previous == cell)
+            return;
+        if (previous >= 0)
+            clear(previous, id);
+        long bit = 1L << id;
+        cells.accumulateAndGet(cell * words + id / 64, bit, (word, b) -> word | b);
+    }
+
+    /**
+     * Takes a kart off the grid
+     */
+    void remove(int id) {
+        int previous = cellOf.getAndSet(id, -1);
+        if (previous >= 0)
+            clear(previous, id);
+    }
+
+    /**
+     * Finds the karts in the cells overlapping a square. They are the only karts that can be within the given radius
+     * of its center, the caller checks which ones really are.
+     *
+     * @param x      center of the square
+     * @param y      center of the square
+     * @param radius half the side of the square
+     * @param ids    receives the ids, in no particular order, at least as long as the capacity
+     * @return number of ids found
+     */
+    int near(int x, int y, int radius, int[] ids) {
+        int count = 0;
+        for (int row = row(y - radius); row <= row(y + radius); row++) {
+            for (int column = column(x - radius); column <= column(x + radius); column++) {
+                int cell = row * COLUMNS + column;
+                for (int w = 0; w < words; w++) {
+                    long word = cells.get(cell * words + w);
+                    while (word != 0 && count < ids.length) { // a kart being moved may be seen twice
+                        ids[count++] = w * 64 + Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private void clear(int cell, int id) {
+        long bit = 1L << id;
+        cells.accumulateAndGet(cell * words + id / 64, bit, (word, b) -> word & ~b);
+    }
+
+    private static int column(int x) {
+        return Math.max(0, Math.min(COLUMNS - 1, x / CELL_SIZE));
+    }
+
+    private static int row(int y) {
+        return Math.max(0, Math.min(ROWS - 1, y / CELL_SIZE));
+    }
+}
@@ -0,0 +1,178 @@
+package section3;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * The images of the game, loaded once for the whole process.
+ * <p>
+ * The 16 images of a kart, one per direction, are decoded in parallel and packed side by side into one atlas, in the
+ * format of the screen so that drawing them needs no conversion. Every kart using the same images shares the atlas,
+ * so building karts again, e.g. on each connection, costs nothing and many karts take no more memory than one.
+ * <p>
+ * {@link #preload(String...)} starts loading in the background at startup. Asking for images that are still loading
+ * waits for them, asking for images that were never asked for loads them.
+ */
+final class SpriteCache {
+
+    /**
+     * The images of a kart, one per direction, packed side by side
+     */
+    static final class Sprites {
+
+        private final Image atlas;
+
+        /**
+         * Width of a cell of the atlas, the widest image
+         */
+        private final int cellWidth;
+
+        //Size of each image, 0 for the ones that failed to load
+        private final int[] widths, heights;
+
+        private Sprites(Image atlas, int cellWidth, int[] widths, int[] heights) {
+            this.atlas = atlas;
+            this.cellWidth = cellWidth;
+            this.widths = widths;
+            this.heights = heights;
+        }
+
+        /**
+         * Draws one of the images
+         *
+         * @param g     graphics context to be used for drawing
+         * @param index index of the image, i.e. the kart's direction
+         * @param x     where the top left corner of the image goes
+         * @param y     where the top left corner of the image goes
+         * @return false if the image failed to load
+         */
+        boolean draw(Graphics g, int index, int x, int y) {
+            if (widths[index] == 0)
+                return false;
+            int sx = index * cellWidth;
+            g.drawImage(atlas, x, y, x + widths[index], y + heights[index],
+                    sx, 0, sx + widths[index], heights[index], null);
+            return true;
+        }
+    }
+
+    private static final int DIRECTIONS = 16;
+
+    private static final Map<String, CompletableFuture<Sprites>> sprites = new ConcurrentHashMap<>();
+
+    private static final Map<String, CompletableFuture<Image>> images = new ConcurrentHashMap<>();
+
+    private SpriteCache() {
+    }
+
+    /**
+     * Starts loading images in the background
+     *
+     * @param paths paths of kart image folders, ending with '/', or of single images
+     */
+    static void preload(String... paths) {
+        for (String path : paths) {
+            if (path.endsWith("/"))
+                load(path);
+            else
+                loadImage(path);
+        }
+    }
+
+    /**
+     * @param rootPath path to the folder containing the images for each direction, named 0.png to 15.png
+     * @return the images of a kart, waiting for them if they are still loading
+     */
+    static Sprites get(String rootPath) {
+        return load(rootPath).join();
+    }
+
+    /**
+     * @param path path to the image
+     * @return the image, in the format of the screen, or null if it failed to load
+     */
+    static Image image(String path) {
+        return loadImage(path).join();
+    }
+
+    private static CompletableFuture<Sprites> load(String rootPath) {
+        return sprites.computeIfAbsent(rootPath, path -> CompletableFuture.supplyAsync(() -> {
+            BufferedImage[] frames = IntStream.range(0, DIRECTIONS).parallel()
+                    .mapToObj(i -> read(path + i + ".png"))
+                    .toArray(BufferedImage[]::new);
+            return pack(frames);
+        }));
+    }
+
+    private static CompletableFuture<Image> loadImage(String path) {
+        return images.computeIfAbsent(path, p -> CompletableFuture.supplyAsync(() -> {
+            BufferedImage image = read(p);
+            if (image == null)
+                return null;
+            BufferedImage compatible = createImage(image.getWidth(), image.getHeight());
+            Graphics2D g = compatible.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            return compatible;
+        }));
+    }
+
+    /**
+     * @return the frames packed side by side into one atlas
+     */
+    private static Sprites pack(BufferedImage[] frames) {
+        int[] widths = new int[frames.length];
+        int[] heights = new int[frames.length];
+        int cellWidth = 1, height = 1;
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null) {
+                widths[i] = frames[i].getWidth();
+                heights[i] = frames[i].getHeight();
+                cellWidth = Math.max(cellWidth, widths[i]);
+                height = Math.max(height, heights[i]);
+            }
+        }
+        BufferedImage atlas = createImage(cellWidth * frames.length, height);
+        Graphics2D g = atlas.createGraphics();
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null)
+                g.drawImage(frames[i], i * cellWidth, 0, null);
+        }
+        g.dispose();
+        return new Sprites(atlas, cellWidth, widths, heights);
+    }
+
+    /**
+     * @return a transparent image in the format of the screen, or a plain ARGB one without a screen
+     */
+    private static BufferedImage createImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless())
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                .createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+
+    /**
+     * @return the decoded image, null if it failed to load
+     */
+    private static BufferedImage read(String path) {
+        URL resource = SpriteCache.class.getClassLoader().getResource(path);
+        if (resource == null) {
+            System.out.println("Image not found : " + path);
+            return null;
+        }
+        try {
+            return ImageIO.read(resource);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package section3;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Server side game loop of a {@link Room}.
+ * The karts of clients that join in tick mode are simulated by the server at a fixed rate, from the inputs
+ * sent by their clients, and one snapshot of the whole world is pushed to each of these clients every tick.
+ * A client's frame rate is therefore no longer bound to its round trip time.
+ * <p>
+ * Protocol, in addition to P0 and P1 :
+ * <ul>
+ * <li>P2#&lt;kart data&gt; : client to server, joins the tick mode with the kart's initial state</li>
+ * <li>P3#&lt;input sequence number&gt;#&lt;commands&gt; : client to server, input commands (see Kart.apply)</li>
+ * <li>P4#&lt;tick&gt;#&lt;id&gt;?&lt;last input sequence number&gt;?&lt;kart data&gt;#... : server to client, snapshot</li>
+ * <li>P7#TICK : client to server, before switching to the binary format, asks for the tick rate.
+ * The server replies P7#TICK#&lt;ticks per second&gt;, from which the client knows when each snapshot was sent.</li>
+ * </ul>
+ * Clients that switched to the binary format get the same messages as frames, see {@link WireCodec}.
+ * These clients acknowledge the last snapshot they received with each input, and from then on they are sent
+ * deltas against the acknowledged snapshot, see {@link Snapshot}. A keyframe is sent instead when the client
+ * just joined or its acknowledged snapshot is too old to still be in the history.
+ */
+class TickLoop {
+
+    /**
+     * Negotiation line sent by the client. The server's reply carries the tick rate after another '#'
+     */
+    static final String NEGOTIATION = "P7#TICK";
+
+    /**
+     * Simulated time per second, in the units of Kart.update(dt).
+     * The client has always stepped its kart with dt = 0.3 at 30 FPS.
+     */
+    private static final double DT_PER_SECOND = 0.3 * 30;
+
+    /**
+     * Number of past snapshots kept for computing deltas
+     */
+    private static final int HISTORY = 64;
+
+    private final ServerEngine server;
+
+    /**
+     * The room whose karts are simulated
+     */
+    private final Room room;
+
+    /**
+     * Ticks per second
+     */
+    private final int tickRate;
+
+    /**
+     * Time step of each tick
+     */
+    private final double dt;
+
+    private final Track track = new Track();
+
+    /**
+     * Karts simulated by the server, by client id
+     */
+    private final Map<Integer, SimulatedKart> simulated = new ConcurrentHashMap<>();
+
+    /**
+     * The ticks scheduled on the room's worker
+     */
+    private ScheduledFuture<?> ticks;
+
+    /**
+     * The last snapshots sent, indexed by tick % HISTORY. Only used on the tick thread
+     */
+    private final Snapshot[] history = new Snapshot[HISTORY];
+
+    /**
+     * When the last snapshots were sent, in System.nanoTime(), indexed like history.
+     * Read by the threads receiving the inputs that acknowledge them.
+     */
+    private final AtomicLongArray sentAt = new AtomicLongArray(HISTORY);
+
+    /**
+     * Records every tick of the room, null if the room is not recorded. Only used on the tick thread, but closed by
+     * whichever thread stops the loop.
+     */
+    private final AtomicReference<ReplayRecorder> recorder = new AtomicReference<>();
+
+    /**
+     * Number of the current tick, only written on the tick thread
+     */
+    private volatile long tick;
+
+    /**
+     * @param server   the server hosting the room
+     * @param room     the room whose karts are simulated
+     * @param tickRate ticks per second
+     */
+    TickLoop(ServerEngine server, Room room, int tickRate) {
+        this.server = server;
+        this.room = room;
+        this.tickRate = tickRate;
+        dt = DT_PER_SECOND / tickRate;
+    }
+
+    /**
+     * Starts ticking
+     *
+     * @param worker   single thread all the ticks run on, shared with the other rooms pinned to it
+     * @param recorder records every tick from now on, null for none
+     */
+    void start(ScheduledExecutorService worker, ReplayRecorder recorder) {
+        this.recorder.set(recorder);
+        ticks = worker.scheduleAtFixedRate(this::tick, 0, TimeUnit.SECONDS.toNanos(1) / tickRate, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops ticking, the worker carries on with its other rooms
+     */
+    void stop() {
+        if (ticks != null)
+            ticks.cancel(false);
+        ReplayRecorder recorder = this.recorder.getAndSet(null);
+        if (recorder != null)
+            closeRecorder(recorder);
+    }
+
+    /**
+     * Closes a recorder and logs what it recorded
+     */
+    private void closeRecorder(ReplayRecorder recorder) {
+        try {
+            long size = recorder.close();
+            server.log("Room " + room.number + " recorded : " + recorder.getTicks() + " ticks, " + size + " bytes in "
+                    + recorder.getFile());
+        } catch (IOException e) {
+            server.error("Failed to close the recording of room " + room.number + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of the current tick
+     */
+    long getTick() {
+        return tick;
+    }
+
+    /**
+     * @return ticks per second
+     */
+    int getTickRate() {
+        return tickRate;
+    }
+
+    /**
+     * A client joins the tick mode. From now on its kart is simulated by the server.
+     *
+     * @param client the client
+     * @param state  initial state of the client's kart
+     */
+    void join(ClientConnection client, KartState state) {
+        Kart kart = new Kart(new Point(), new Dimension(), 0);
+        kart.setState(state);
+        room.setKart(client.getClientId(), state);
+        simulated.put(client.getClientId(), new SimulatedKart(client, kart));
+    }
+
+    /**
+     * Queues input commands of a client. They are applied at the start of the next tick.
+     *
+     * @param client    the client
+     * @param seq       sequence number of the input
+     * @param ackedTick tick of the last snapshot the client received, 0 if unknown
+     * @param commands  the commands, in the order they were given
+     */
+    void input(ClientConnection client, int seq, int ackedTick, String commands) {
+        SimulatedKart simulatedKart = simulated.get(client.getClientId());
+        if (simulatedKart != null) {
+            if (seq <= simulatedKart.lastQueued)
+                return; // already queued, clients sending datagrams repeat their inputs until acknowledged
+            simulatedKart.lastQueued = seq;
+            simulatedKart.inputs.add(new Input(seq, commands));
+            // a snapshot not sent yet can't have been received, such an acknowledgment would hold back the deltas
+            if (ackedTick > simulatedKart.ackedTick && ackedTick <= tick) {
+                simulatedKart.ackedTick = ackedTick;
+                if (ackedTick > tick - HISTORY)
+                    simulatedKart.roundTrip(System.nanoTime() - sentAt.get(ackedTick % HISTORY));
+            }
+        }
+    }
+
+    /**
+     * @return smoothed round trip time of each client that acknowledged a snapshot, in nanoseconds, by client id
+     */
+    Map<Integer, Long> roundTrips() {
+        Map<Integer, Long> roundTrips = new HashMap<>();
+        for (SimulatedKart simulatedKart : simulated.values()) {
+            if (simulatedKart.roundTrip > 0)
+                roundTrips.put(simulatedKart.client.getClientId(), simulatedKart.roundTrip);
+        }
+        return roundTrips;
+    }
+
+    /**
+     * A client leaves, its kart is no longer simulated.
+     *
+     * @param client the client
+     */
+    void leave(ClientConnection client) {
+        simulated.remove(client.getClientId());
+    }
+
+    /**
+     * Runs one tick : applies the queued inputs, moves the simulated karts and pushes the snapshot.
+     */
+    private void tick() {
+        try {
+            tick++;
+            ReplayRecorder recorder = this.recorder.get();
+            if (simulated.isEmpty() && recorder == null)
+                return;
+            for (SimulatedKart simulatedKart : simulated.values()) {
+                simulatedKart.step();
+            }
+            Snapshot snapshot = snapshot();
+            if (recorder != null)
+                record(recorder, snapshot);
+            if (simulated.isEmpty())
+                return;
+            history[(int) (tick % HISTORY)] = snapshot;
+            sentAt.set((int) (tick % HISTORY), System.nanoTime());
+
+            // each encoding is done at most once, whatever the number of clients using it
+            ByteBuffer text = null;
+            ByteBuffer keyframe = null;
+            Map<Integer, ByteBuffer> deltas = new HashMap<>();
+            for (SimulatedKart simulatedKart : simulated.values()) {
+                if (!simulatedKart.client.isBinary()) {
+                    if (text == null)
+                        text = ByteBuffer.wrap((snapshot.encode() + "\n").getBytes(StandardCharsets.US_ASCII));
+                    simulatedKart.client.send(text);
+                    continue;
+                }
+                Snapshot base = acknowledged(simulatedKart.ackedTick);
+                if (base == null) {
+                    if (keyframe == null)
+                        keyframe = keyframe(snapshot);
+                    server.sendState(simulatedKart.client, keyframe);
+                } else {
+                    server.sendState(simulatedKart.client, deltas.computeIfAbsent(base.tick, t -> delta(snapshot, base)));
+                }
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel all the following ticks
+            server.error("Tick " + tick + " of room " + room.number + " failed : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a tick. The room is no longer recorded if it fails, e.g. when the disk is full.
+     */
+    private void record(ReplayRecorder recorder, Snapshot snapshot) {
+        try {
+            recorder.record(snapshot);
+        } catch (IOException e) {
+            server.error("Recording of room " + room.number + " stopped : " + e.getMessage());
+            if (this.recorder.compareAndSet(recorder, null))
+                closeRecorder(recorder);
+        }
+    }
+
+    /**
+     * @return the snapshot of the world, built from the server's karts
+     */
+    private Snapshot snapshot() {
+        // each slot is read once, so that the arrays match even if karts are added meanwhile, in id order
+        KartRegistry registry = room.registry;
+        int limit = registry.limit();
+        int[] ids = new int[limit];
+        int[] lastInputs = new int[limit];
+        KartState[] states = new KartState[limit];
+        int count = 0;
+        for (int id = 0; id < limit; id++) {
+            KartState state = registry.kart(id);
+            if (state == null)
+                continue;
+            SimulatedKart simulatedKart = simulated.get(id);
+            ids[count] = id;
+            lastInputs[count] = simulatedKart == null ? 0 : simulatedKart.lastInput;
+            states[count++] = state;
+        }
+        if (count < limit) {
+            ids = Arrays.copyOf(ids, count);
+            lastInputs = Arrays.copyOf(lastInputs, count);
+            states = Arrays.copyOf(states, count);
+        }
+        return new Snapshot((int) tick, ids, lastInputs, states);
+    }
+
+    /**
+     * @param ackedTick tick of the snapshot acknowledged by a client
+     * @return the acknowledged snapshot, or null if the client acknowledged none or it is no longer in the history
+     */
+    private Snapshot acknowledged(int ackedTick) {
+        if (ackedTick <= 0 || ackedTick <= tick - HISTORY)
+            return null;
+        Snapshot snapshot = history[ackedTick % HISTORY];
+        return snapshot != null && snapshot.tick == ackedTick ? snapshot : null;
+    }
+
+    /**
+     * @return the whole snapshot as a frame
+     */
+    private ByteBuffer keyframe(Snapshot snapshot) {
+        ByteBuffer frame = WireCodec.allocateFrame(snapshot.maxEncodedSize());
+        WireCodec.beginFrame(frame, WireCodec.SNAPSHOT);
+        snapshot.encode(frame);
+        return WireCodec.endFrame(frame);
+    }
+
+    /**
+     * @return the changes from base to snapshot as a frame
+     */
+    private ByteBuffer delta(Snapshot snapshot, Snapshot base) {
+        ByteBuffer frame = WireCodec.allocateFrame(snapshot.maxEncodedSize() + base.size() * Snapshot.MAX_ENTRY_SIZE);
+        WireCodec.beginFrame(frame, WireCodec.DELTA);
+        snapshot.encodeDelta(frame, base);
+        return WireCodec.endFrame(frame);
+    }
+
+    /**
+     * Input commands of a client
+     */
+    private static class Input {
+        private final int seq;
+        private final String commands;
+
+        private Input(int seq, String commands) {
+            this.seq = seq;
+            this.commands = commands;
+        }
+    }
+
+    /**
+     * A kart simulated by the server, along with the inputs its client sent
+     */
+    private class SimulatedKart {
+        private final ClientConnection client;
+        private final Kart kart;
+        private final Queue<Input> inputs = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Sequence number of the last input applied to the kart, only used on the tick thread
+         */
+        private int lastInput;
+
+        /**
+         * Sequence number of the last input queued, only used on the thread receiving the client's inputs
+         */
+        private int lastQueued;
+
+        /**
+         * Tick of the last snapshot the client acknowledged
+         */
+        private volatile int ackedTick;
+
+        /**
+         * Smoothed time from a snapshot being sent to the client acknowledging it, in nanoseconds, 0 until known.
+         * Only written on the thread receiving the client's inputs.
+         */
+        private volatile long roundTrip;
+
+        private SimulatedKart(ClientConnection client, Kart kart) {
+            this.client = client;
+            this.kart = kart;
+        }
+
+        /**
+         * Adds a round trip time to the average, weighted like TCP's smoothed round trip time
+         */
+        private void roundTrip(long nanos) {
+            roundTrip = roundTrip == 0 ? nanos : (7 * roundTrip + nanos) / 8;
+            server.metrics.roundTrip(nanos);
+        }
+
+        /**
+         * Applies the queued inputs and moves the kart by one tick
+         */
+        private void step() {
+            Input input;
+            while ((input = inputs.poll()) != null) {
+                for (int i = 0; i < input.commands.length(); i++) {
+                    kart.apply(input.commands.charAt(i));
+                }
+                lastInput = input.seq;
+            }
+            kart.update(dt);
+            track.checkKartCollision(kart);
+            room.setKart(client.getClientId(), kart.getState());
+        }
+    }
+}
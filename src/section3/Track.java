@@ -0,0 +1,45 @@
+package section3;
+
+import java.awt.*;
+
+/**
+ * The race track - Encapsulates the track's bounds and the karts' collisions with them.
+ * It is shared by the clients and the server, so that both agree on where the walls are.
+ */
+public class Track {
+
+    //Bounds of the track
+    final Rectangle innerBounds = new Rectangle(150, 200, 550, 300);
+    final Rectangle midBounds = new Rectangle(100, 150, 650, 400);
+    final Rectangle outerBounds = new Rectangle(50, 100, 750, 500);
+    final int trackWidth = 100;
+    final Point startPoint = new Point(425, 500);
+
+    /**
+     * Checks kart's collision with the walls of the track.
+     * A kart that hits a wall is stopped and stays stuck until it is steered away from the wall.
+     *
+     * @param kart the kart which is to be checked
+     * @return whether the kart has just hit a wall, i.e. it collides and was not stuck already
+     */
+    public boolean checkKartCollision(Kart kart) {
+
+        if (kart.intersects(innerBounds)) {
+            kart.stop();
+
+            if (!kart.isStuck()) {
+                kart.setStuck(true);
+                return true;
+            }
+        } else if (!kart.isInside(outerBounds)) {
+            kart.stop();
+            if (!kart.isStuck()) {
+                kart.setStuck(true);
+                return true;
+            }
+        } else {
+            kart.setStuck(false);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,115 @@
+package section3;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Client side of the datagram transport, see {@link UdpTransport}.
+ * Frames are added to a datagram with {@link #add(ByteBuffer)} and sent together with {@link #send()}.
+ * {@link #receive()} blocks, so datagrams are received on a thread of their own while another one sends.
+ */
+class UdpClient {
+
+    private final DatagramChannel channel;
+
+    /**
+     * Token given by the server, identifies this client's datagrams
+     */
+    private final int token;
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(UdpTransport.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(UdpTransport.MAX_DATAGRAM_SIZE);
+
+    //Sequence numbers of the last datagram sent and received
+    private int sendSeq;
+    private int receiveSeq;
+
+    /**
+     * @param server address of the server, the host and port of its TCP socket
+     * @param token  token given by the server
+     * @throws IOException if the channel can't be opened
+     */
+    UdpClient(SocketAddress server, int token) throws IOException {
+        this.token = token;
+        channel = DatagramChannel.open();
+        channel.connect(server);
+        begin();
+    }
+
+    /**
+     * Adds a frame to the next datagram
+     *
+     * @param frame the frame, not consumed
+     * @return false if the datagram is full
+     */
+    boolean add(ByteBuffer frame) {
+        if (sendBuffer.remaining() < frame.remaining())
+            return false;
+        sendBuffer.put(frame.duplicate());
+        return true;
+    }
+
+    /**
+     * Sends the frames added since the last datagram
+     *
+     * @throws IOException if the datagram can't be sent
+     */
+    void send() throws IOException {
+        sendBuffer.flip();
+        try {
+            channel.write(sendBuffer);
+        } catch (PortUnreachableException e) {
+            // nothing listens on the server's port yet, or anymore. The TCP connection tells which
+        } finally {
+            begin();
+        }
+    }
+
+    /**
+     * Waits for the next datagram from the server that is newer than all the ones before it
+     *
+     * @return the frames of the datagram
+     * @throws IOException if the channel fails or is closed
+     */
+    ByteBuffer receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            try {
+                if (channel.read(receiveBuffer) <= 0)
+                    continue;
+            } catch (PortUnreachableException e) {
+                continue; // the server isn't listening yet, or anymore
+            }
+            receiveBuffer.flip();
+            int seq = WireCodec.readVarInt(receiveBuffer);
+            if (seq > receiveSeq) {
+                receiveSeq = seq;
+                return receiveBuffer;
+            }
+            // stale, a newer datagram has already been received
+        }
+    }
+
+    /**
+     * Closes the channel
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the next datagram with the token and a new sequence number
+     */
+    private void begin() {
+        sendBuffer.clear();
+        sendBuffer.putInt(token);
+        WireCodec.writeVarInt(sendBuffer, ++sendSeq);
+    }
+}
@@ -0,0 +1,247 @@
+package section3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional datagram transport for state traffic, i.e. the STATE, INPUT, SNAPSHOT and DELTA frames of the binary
+ * format (see {@link WireCodec}). The TCP connection stays as the reliable channel for everything else, such as
+ * joining and leaving, and as the fallback for frames too large for a datagram.
+ * <p>
+ * A client asks for the transport by sending the line "P6#UDP" over TCP, before switching to the binary format, which
+ * the datagrams use. The server replies with "P6#UDP#&lt;token&gt;" and from then on accepts datagrams from the
+ * client on the same port as the TCP socket :
+ * <ul>
+ * <li>client to server : [token (int)][sequence number (varint)](frame)*</li>
+ * <li>server to client : [sequence number (varint)](frame)*</li>
+ * </ul>
+ * Each side drops datagrams whose sequence number is not newer than the last one it received,
+ * so a late datagram never overrides fresher state and a lost one only costs one stale frame.
+ * <p>
+ * One thread receives the datagrams of every client, but their frames are handled on the worker of the client's room,
+ * so that the rooms' state traffic is still handled in parallel, and each client's on a single thread.
+ */
+class UdpTransport {
+
+    /**
+     * Negotiation line sent by the client. The server's reply carries the token after another '#'
+     */
+    static final String NEGOTIATION = "P6#UDP";
+
+    /**
+     * Largest datagram sent, small enough not to be fragmented on usual links
+     */
+    static final int MAX_DATAGRAM_SIZE = 1200;
+
+    private final ServerEngine server;
+
+    private final DatagramChannel channel;
+
+    /**
+     * Clients that set up the datagram transport, by token
+     */
+    private final Map<Integer, Peer> peersByToken = new ConcurrentHashMap<>();
+
+    /**
+     * The same clients, by connection, since client ids are only unique within a room
+     */
+    private final Map<ClientConnection, Peer> peersByClient = new ConcurrentHashMap<>();
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Datagrams are built in a buffer of the sending thread, since snapshots and replies are sent from many threads
+     */
+    private final ThreadLocal<ByteBuffer> sendBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_DATAGRAM_SIZE));
+
+    private volatile boolean running;
+
+    /**
+     * Binds the datagram channel. No thread is started until {@link #start()}.
+     *
+     * @param server the game server handling the received frames
+     * @param port   port to listen on, the same as the TCP port
+     * @throws IOException if the port can't be bound
+     */
+    UdpTransport(ServerEngine server, int port) throws IOException {
+        this.server = server;
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Starts receiving datagrams
+     */
+    void start() {
+        running = true;
+        new Thread(this::receiveLoop, "udp-receive").start();
+    }
+
+    /**
+     * Stops receiving datagrams and closes the channel
+     */
+    void stop() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            server.error("Failed to close the datagram channel : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets up the datagram transport for a client
+     *
+     * @param client the client
+     * @return the token the client has to put in its datagrams
+     */
+    int register(ClientConnection client) {
+        Peer peer = new Peer(client);
+        do {
+            peer.token = random.nextInt();
+        } while (peersByToken.putIfAbsent(peer.token, peer) != null);
+        peersByClient.put(client, peer);
+        return peer.token;
+    }
+
+    /**
+     * Forgets a client, its datagrams are dropped from now on
+     *
+     * @param client the client
+     */
+    void unregister(ClientConnection client) {
+        Peer peer = peersByClient.remove(client);
+        if (peer != null)
+            peersByToken.remove(peer.token);
+    }
+
+    /**
+     * Sends a frame to a client in a datagram.
+     *
+     * @param client the client
+     * @param frame  the frame, not consumed
+     * @return false if the frame was not sent, because the client has no datagram transport yet
+     * or the frame is too large, in which case it should be sent over TCP instead
+     */
+    boolean send(ClientConnection client, ByteBuffer frame) {
+        return send(client, new ByteBuffer[]{frame});
+    }
+
+    /**
+     * Sends a frame given in parts to a client in a datagram, see {@link #send(ClientConnection, ByteBuffer)}
+     *
+     * @param client the client
+     * @param parts  the frame's parts, only read during the call
+     * @return false if the frame was not sent
+     */
+    boolean send(ClientConnection client, ByteBuffer[] parts) {
+        Peer peer = peersByClient.get(client);
+        if (peer == null || peer.address == null)
+            return false;
+        int size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+        ByteBuffer datagram = sendBuffer.get();
+        datagram.clear();
+        int seq = peer.sendSeq.incrementAndGet();
+        if (WireCodec.varIntSize(seq) + size > datagram.capacity())
+            return false;
+        WireCodec.writeVarInt(datagram, seq);
+        for (ByteBuffer part : parts) {
+            datagram.put(part.duplicate());
+        }
+        datagram.flip();
+        try {
+            server.metrics.sent(channel.send(datagram, peer.address));
+            return true;
+        } catch (IOException e) {
+            server.metrics.writeFailed();
+            return false;
+        }
+    }
+
+    /**
+     * Receives datagrams and hands their frames to the workers of the clients' rooms while running
+     */
+    private void receiveLoop() {
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (running) {
+            try {
+                datagram.clear();
+                SocketAddress address = channel.receive(datagram);
+                datagram.flip();
+                server.metrics.received(datagram.remaining());
+                if (datagram.remaining() < Integer.BYTES)
+                    continue;
+                Peer peer = peersByToken.get(datagram.getInt());
+                if (peer == null)
+                    continue; // not a client of ours, or one that left
+                int seq = WireCodec.readVarInt(datagram);
+                if (seq <= peer.receiveSeq)
+                    continue; // stale, a newer datagram has already been handled
+                peer.receiveSeq = seq;
+                peer.address = address;
+                // the datagram buffer is reused for the next one, the frames are copied for the worker
+                ByteBuffer frames = ByteBuffer.allocate(datagram.remaining()).put(datagram).flip();
+                peer.client.getRoom().execute(() -> handleFrames(peer, frames)); // not run if the server is stopping
+            } catch (ClosedChannelException e) {
+                break; // the server has been stopped
+            } catch (IOException | RuntimeException e) {
+                server.error("Failed to receive a datagram : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands the frames of a datagram to the server, on the worker of the client's room
+     */
+    private void handleFrames(Peer peer, ByteBuffer frames) {
+        if (peersByClient.get(peer.client) != peer)
+            return; // the client left while the datagram was queued
+        try {
+            ByteBuffer frame;
+            while ((frame = WireCodec.nextFrame(frames)) != null) {
+                server.handleClientFrame(peer.client, frame);
+            }
+        } catch (RuntimeException e) {
+            // thrown out of the task, it would be kept in a future nobody reads
+            server.error("Failed to handle a datagram of client " + peer.client.getClientId() + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * A client using the datagram transport
+     */
+    private static class Peer {
+        private final ClientConnection client;
+        private int token;
+
+        /**
+         * Where the client's datagrams come from, null until the first one arrives
+         */
+        private volatile SocketAddress address;
+
+        /**
+         * Sequence number of the last datagram received, only used on the receiving thread
+         */
+        private int receiveSeq;
+
+        /**
+         * Sequence number of the last datagram sent
+         */
+        private final AtomicInteger sendSeq = new AtomicInteger();
+
+        private Peer(ClientConnection client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package section3;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Thread.ofVirtual()) without requiring a JDK that has them to build the game.
+ * The builder is looked up reflectively once; on older JVMs {@link #isSupported()} returns false.
+ */
+final class VirtualThreads {
+
+    /**
+     * Factory creating virtual threads, or null if the running JVM has none
+     */
+    private static final ThreadFactory FACTORY = lookupFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    /**
+     * @return a factory of virtual threads if supported, otherwise a factory of ordinary platform threads
+     */
+    static ThreadFactory factory() {
+        return FACTORY != null ? FACTORY : Thread::new;
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // go through the public Thread.Builder interface, the builder's own class is not accessible
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package section3;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * The binary wire format, an alternative to the text protocol negotiated per connection.
+ * <p>
+ * Right after receiving its id, a client may send the line "P5#BIN". A server supporting the binary format replies
+ * with the same line, and from then on both sides only exchange frames :
+ * [length (varint)][message type (byte)][payload], where length counts the type and the payload.
+ * <p>
+ * Message types follow the text protocol numbers :
+ * <ul>
+ * <li>LEAVE : client to server [kart]; server to client [id]</li>
+ * <li>STATE : client to server [kart]; server to client, the reply [count]([id][kart])*</li>
+ * <li>JOIN : client to server [kart]</li>
+ * <li>INPUT : client to server [input sequence number][last snapshot tick received][count][command bytes]</li>
+ * <li>SNAPSHOT : server to client, a keyframe [tick][count]([id][last input][kart])*</li>
+ * <li>DELTA : server to client, a snapshot as a delta against an acknowledged one, see {@link Snapshot}</li>
+ * </ul>
+ * Ids, counts and sequence numbers are varints, karts are in the {@link KartState} binary format.
+ */
+final class WireCodec {
+
+    /**
+     * Negotiation line, sent by the client and echoed by the server
+     */
+    static final String NEGOTIATION = "P5#BIN";
+
+    //Message types
+    static final byte LEAVE = 0;
+    static final byte STATE = 1;
+    static final byte JOIN = 2;
+    static final byte INPUT = 3;
+    static final byte SNAPSHOT = 4;
+    static final byte DELTA = 6; // 5 is the negotiation line in the text protocol
+
+    /**
+     * Maximum size of a varint holding an int
+     */
+    static final int MAX_VARINT_SIZE = 5;
+
+    /**
+     * Longest frame accepted, type included : a snapshot of tens of thousands of karts.
+     * A longer or negative length is a broken or hostile peer, whose connection is to be closed.
+     */
+    static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private WireCodec() {
+    }
+
+    /**
+     * Writes a non-negative int in 7 bit groups, least significant group first
+     */
+    static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a varint written by {@link #writeVarInt(ByteBuffer, int)}
+     */
+    static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * @return number of bytes the value takes as a varint
+     */
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * @param maxPayload maximum payload size of the frames to be built in the buffer
+     * @return a buffer for building frames with {@link #beginFrame(ByteBuffer, byte)}
+     */
+    static ByteBuffer allocateFrame(int maxPayload) {
+        return ByteBuffer.allocate(MAX_VARINT_SIZE + 1 + maxPayload);
+    }
+
+    /**
+     * Starts a frame in the buffer. The payload is then written at the buffer's position.
+     * Room is left for the length, which is only known once the payload has been written.
+     *
+     * @param buffer the buffer, reused for every frame
+     * @param type   message type
+     */
+    static void beginFrame(ByteBuffer buffer, byte type) {
+        buffer.clear();
+        buffer.position(MAX_VARINT_SIZE);
+        buffer.put(type);
+    }
+
+    /**
+     * Ends a frame started with {@link #beginFrame(ByteBuffer, byte)} by writing its length just before the type.
+     *
+     * @param buffer the buffer
+     * @return the buffer, positioned and limited to the frame
+     */
+    static ByteBuffer endFrame(ByteBuffer buffer) {
+        int end = buffer.position();
+        int length = end - MAX_VARINT_SIZE;
+        int start = MAX_VARINT_SIZE - varIntSize(length);
+        buffer.position(start);
+        writeVarInt(buffer, length);
+        buffer.limit(end);
+        buffer.position(start);
+        return buffer;
+    }
+
+    /**
+     * @param clientId id of the client that left
+     * @return a LEAVE frame
+     */
+    static ByteBuffer leaveFrame(int clientId) {
+        ByteBuffer frame = allocateFrame(MAX_VARINT_SIZE);
+        beginFrame(frame, LEAVE);
+        writeVarInt(frame, clientId);
+        return endFrame(frame);
+    }
+
+    /**
+     * Takes the next complete frame off a buffer of received bytes.
+     *
+     * @param buffer received bytes, from its position to its limit
+     * @return the frame's type and payload, or null if the frame is not complete yet, in which case the buffer is
+     * left untouched
+     * @throws IllegalArgumentException if the frame's length is invalid, see MAX_FRAME_SIZE
+     */
+    static ByteBuffer nextFrame(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return null;
+            }
+            byte b = buffer.get();
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+            if (shift >= 7 * (MAX_VARINT_SIZE - 1))
+                throw new IllegalArgumentException("Invalid frame length, more than " + MAX_VARINT_SIZE + " bytes");
+        }
+        if (!isValidLength(length))
+            throw new IllegalArgumentException("Invalid frame length " + length);
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer frame = buffer.slice();
+        frame.limit(length);
+        buffer.position(buffer.position() + length);
+        return frame;
+    }
+
+    /**
+     * Reads the next frame off a stream, blocking until it is complete.
+     *
+     * @param in the stream
+     * @return the frame's type and payload
+     * @throws IOException if the stream ends or fails, or the frame's length is invalid, see MAX_FRAME_SIZE
+     */
+    static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+            if (shift >= 7 * (MAX_VARINT_SIZE - 1))
+                throw new IOException("Invalid frame length, more than " + MAX_VARINT_SIZE + " bytes");
+        }
+        if (!isValidLength(length))
+            throw new IOException("Invalid frame length " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * @return whether a received frame length is acceptable : a frame holds at least its type
+     */
+    private static boolean isValidLength(int length) {
+        return length > 0 && length <= MAX_FRAME_SIZE;
+    }
+
+    /**
+     * Writes a frame to a stream and flushes it. The frame's position is left untouched, so it can be written again.
+     */
+    static void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+        Channels.newChannel(out).write(frame.duplicate());
+        out.flush();
+    }
+
+    /**
+     * Reads one line off a stream without reading ahead, so that the stream can then be read as frames.
+     *
+     * @param in the stream
+     * @return the line, without the line terminator, or null if the stream ended
+     * @throws IOException if the stream fails
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                return line.length() == 0 ? null : line.toString();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package section3;
+
+import java.util.Arrays;
+
+/**
+ * An immutable view of the world as last received from the server, indexed by kart id.
+ * The network threads publish a new one for every update, and the game loop reads the latest one without ever
+ * waiting, see {@link ServerConnection#getWorld()}.
+ */
+final class WorldState {
+
+    static final WorldState EMPTY = new WorldState(new KartState[0], new long[0], 0, 0, 0);
+
+    /**
+     * State of each kart by id, null for karts the server hasn't sent
+     */
+    private final KartState[] karts;
+
+    /**
+     * When each kart's state was received, in System.nanoTime() units
+     */
+    private final long[] updatedAt;
+
+    /**
+     * Tick of the latest snapshot applied, 0 if none (e.g. without tick mode)
+     */
+    final int tick;
+
+    /**
+     * Sequence number of this client's last input the server applied, as per the latest snapshot
+     */
+    final int ackedInput;
+
+    /**
+     * When this state was received, in System.nanoTime() units
+     */
+    final long receivedAt;
+
+    private WorldState(KartState[] karts, long[] updatedAt, int tick, int ackedInput, long receivedAt) {
+        this.karts = karts;
+        this.updatedAt = updatedAt;
+        this.tick = tick;
+        this.ackedInput = ackedInput;
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * @return number of kart slots, i.e. the largest known id + 1
+     */
+    int size() {
+        return karts.length;
+    }
+
+    /**
+     * @param id kart id
+     * @return the kart's state, or null if the server hasn't sent it
+     */
+    KartState get(int id) {
+        return id < karts.length ? karts[id] : null;
+    }
+
+    /**
+     * @param id kart id
+     * @return when the kart's state was received, in System.nanoTime() units, or Long.MIN_VALUE if never
+     */
+    long updatedAt(int id) {
+        return id < karts.length && karts[id] != null ? updatedAt[id] : Long.MIN_VALUE;
+    }
+
+    /**
+     * @param ids    ids of the updated karts
+     * @param states their new states
+     * @param count  number of updated karts
+     * @return this world with the given karts updated
+     */
+    WorldState with(int[] ids, KartState[] states, int count) {
+        KartState[] updated = Arrays.copyOf(karts, size(ids, count));
+        long[] times = Arrays.copyOf(updatedAt, updated.length);
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            updated[ids[i]] = states[i];
+            times[ids[i]] = now;
+        }
+        return new WorldState(updated, times, tick, ackedInput, now);
+    }
+
+    /**
+     * A snapshot carries the whole world, so the karts it doesn't carry, e.g. those removed since its base, are gone.
+     *
+     * @param snapshot a snapshot from the server
+     * @param ownId    id of this client, to pick its acknowledged input
+     * @return the world of the snapshot
+     */
+    WorldState with(Snapshot snapshot, int ownId) {
+        KartState[] updated = new KartState[size(snapshot.ids, snapshot.size())];
+        long[] times = new long[updated.length];
+        long now = System.nanoTime();
+        int acked = ackedInput;
+        for (int i = 0; i < snapshot.size(); i++) {
+            updated[snapshot.ids[i]] = snapshot.states[i];
+            times[snapshot.ids[i]] = now;
+            if (snapshot.ids[i] == ownId)
+                acked = snapshot.lastInputs[i];
+        }
+        return new WorldState(updated, times, snapshot.tick, acked, now);
+    }
+
+    /**
+     * @return number of kart slots needed for the given ids
+     */
+    private int size(int[] ids, int count) {
+        int size = karts.length;
+        for (int i = 0; i < count; i++) {
+            size = Math.max(size, ids[i] + 1);
+        }
+        return size;
+    }
+}